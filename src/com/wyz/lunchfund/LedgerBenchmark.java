@@ -0,0 +1,235 @@
+package com.wyz.lunchfund;
+
+import java.io.*;
+import java.util.*;
+
+/* Micro benchmarks for the PersistentState operations that scale with the
+ * ledger. A synthetic ledger is generated for every combination of people
+ * count, history length and eaters per lunch, and each operation is timed
+ * after a warm-up round. Runs on the device, so numbers are comparable
+ * before and after a change to storage or merge. */
+public class LedgerBenchmark
+{
+	public static final int [] DEFAULT_PEOPLE = {8, 64, 1024};
+	public static final int [] DEFAULT_HISTORY = {1000, 10000};
+	public static final int [] DEFAULT_EATERS = {4};
+
+	private static final int WARMUP = 2;
+	private static final int ROUNDS = 5;
+	private static final int EXPORT_SIZE = 64;
+
+	private final StringBuilder report = new StringBuilder();
+	// Every op folds its result in here, and it is reported, so the JIT
+	// cannot drop the work being timed.
+	private long checksum = 0;
+
+	/* Returns the ledger in the history.txt format. Dates strictly increase
+	 * so that the result is also valid input for merge(). */
+	public static String generate (int numPeople, int historyLength, int eatersPerLunch, long seed)
+	{
+		if (numPeople < 2 || eatersPerLunch < 1 || eatersPerLunch > numPeople)
+			throw new IllegalArgumentException("people=" + numPeople + ", eaters=" + eatersPerLunch);
+		Random rand = new Random(seed);
+		StringBuilder sb = new StringBuilder();
+		long date = 1300000000000L;
+		String [] names = new String [numPeople];
+		for (int i = 0; i < numPeople; i ++) {
+			names[i] = "person" + i;
+			date += 1000;
+			sb.append(date).append("\tadd\t").append(names[i]).append("\t").
+				append(names[i]).append("@example.com\n");
+		}
+		List<String> shuffled = new ArrayList<String>(Arrays.asList(names));
+		for (int i = numPeople; i < historyLength; i ++) {
+			date += 1000 + rand.nextInt(86400000);
+			if (rand.nextInt(10) == 0) {
+				int from = rand.nextInt(numPeople);
+				int to = (from + 1 + rand.nextInt(numPeople - 1)) % numPeople;
+				sb.append(date).append("\ttransfer\t").append(names[from]).append("\t").
+					append(names[to]).append("\t").append(100 + rand.nextInt(5000)).
+					append("\tpayback ").append(i).append("\n");
+			} else {
+				Collections.shuffle(shuffled, rand);
+				sb.append(date).append("\tlunch\t").append(names[rand.nextInt(numPeople)]).
+					append("\t").append(500 + rand.nextInt(10000)).
+					append("\tlunch ").append(i);
+				for (int j = 0; j < eatersPerLunch; j ++)
+					sb.append("\t").append(shuffled.get(j));
+				sb.append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	public static String runDefault ()
+	{
+		return run(DEFAULT_PEOPLE, DEFAULT_HISTORY, DEFAULT_EATERS);
+	}
+
+	public static String run (int [] peopleCounts, int [] historyLengths, int [] eatersPerLunch)
+	{
+		LedgerBenchmark bench = new LedgerBenchmark();
+		Stats.suspend();
+		try {
+			for (int people : peopleCounts)
+				for (int history : historyLengths)
+					for (int eaters : eatersPerLunch)
+						if (eaters <= people && people <= history)
+							bench.runOne(people, history, eaters);
+		} finally {
+			Stats.resume();
+		}
+		return bench.report.toString();
+	}
+
+	private interface Op {
+		void run () throws Exception;
+	}
+
+	private void runOne (int numPeople, int historyLength, int eatersPerLunch)
+	{
+		report.append("people=").append(numPeople).append(" history=").append(historyLength).
+			append(" eaters=").append(eatersPerLunch).append("\n");
+
+		final String text = generate(numPeople, historyLength, eatersPerLunch, 1);
+		final PersistentState ps = PersistentState.load(text);
+		final int numExp = Math.min(EXPORT_SIZE, historyLength - numPeople);
+		final String prefixText = text.substring(0, offsetOfLine(text, historyLength - numExp));
+		final PersistentState prefix = PersistentState.load(prefixText);
+		final String foreign = ps.export(numExp);
+		final String name = ps.listPeopleNames()[0];
+		final Set<String> group = new HashSet<String>();
+		String [] names = ps.listPeopleNames();
+		for (int i = 0; i < names.length; i += 2)
+			group.add(names[i]);
+
+		time("load", new Op() {public void run () throws Exception {
+			checksum += PersistentState._load(new StringReader(text)).historySize();
+		}});
+		final byte [] bytes;
+		try {
+			bytes = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException x) {
+			throw new RuntimeException(x);
+		}
+		time("load(lazy)", new Op() {public void run () throws Exception {
+			checksum += PersistentState._loadLazy(bytes).historySize();
+		}});
+		time("save", new Op() {public void run () throws Exception {
+			StringWriter writer = new StringWriter(text.length());
+			ps.save(writer);
+			checksum += writer.getBuffer().length();
+		}});
+		// A change right after a snapshot, as every redraw() leaves one.
+		final PersistentState scratch = PersistentState.load(text);
+		final String [] pair = {names[0], names[1]};
+		time("transfer after snapshot", new Op() {public void run () {
+			scratch.snapshot();
+			scratch.performTransfer(pair[0], pair[1], 100, "benchmark");
+			scratch.undo(1);
+			checksum += scratch.historySize();
+		}});
+		time("export(" + numExp + ")", new Op() {public void run () {
+			checksum += ps.export(numExp).length();
+		}});
+		time("export(all)", new Op() {public void run () {
+			checksum += ps.export(ps.historySize()).length();
+		}});
+		time("merge(" + numExp + ")", new Op() {public void run () {
+			PersistentState.MergeResult result = prefix.merge(foreign);
+			if (result.newPS == null)
+				throw new RuntimeException("merge failed");
+			checksum += result.newPS.historySize();
+		}});
+		time("mergeAll(3 x " + numExp + ")", new Op() {public void run () throws Exception {
+			List<InputStream> exports = new ArrayList<InputStream>();
+			for (int i = 0; i < 3; i ++)
+				exports.add(new ByteArrayInputStream(foreign.getBytes("US-ASCII")));
+			PersistentState.MergeResult result = prefix.mergeAll(exports);
+			if (result.newPS == null)
+				throw new RuntimeException("merge failed");
+			checksum += result.newPS.historySize();
+		}});
+		time("sync(" + numExp + ", loopback)", new Op() {public void run () throws Exception {
+			PersistentState.MergeResult result = SyncProtocol.loopback(prefix, ps)[0];
+			if (result.newPS == null)
+				throw new RuntimeException("sync failed");
+			checksum += result.newPS.historySize();
+		}});
+		checkSync(prefixText, ps);
+		for (int i = 1; i <= 3; i ++) {
+			final int sortBy = i;
+			time("listPeople(" + sortBy + ")", new Op() {public void run () {
+				for (PersistentState.Person p : ps.listPeople(sortBy))
+					checksum = checksum * 31 + p.balance;
+			}});
+		}
+		time("showHistory(global)", new Op() {public void run () {
+			checksum += ps.showHistory(true).length();
+		}});
+		time("showHistory(person)", new Op() {public void run () {
+			checksum += ps.showHistory(true, name).length();
+		}});
+		time("showHistory(group of " + group.size() + ")", new Op() {public void run () {
+			checksum += ps.showHistory(true, group).length();
+		}});
+		report.append("  checksum: ").append(Long.toHexString(checksum)).append("\n");
+	}
+
+	/* Syncs the prefix plus one transaction of its own with full over
+	 * loopback, and reports whether both sides then save the same log. */
+	private void checkSync (String prefixText, PersistentState full)
+	{
+		String lastLine = prefixText.substring(prefixText.lastIndexOf('\n', prefixText.length() - 2) + 1);
+		long date = Long.parseLong(lastLine.substring(0, lastLine.indexOf('\t'))) + 1;
+		String [] names = full.listPeopleNames();
+		PersistentState local = PersistentState.load(prefixText + date + "\ttransfer\t" + names[0] + "\t" +
+			names[1] + "\t100\tlocal only\n");
+		String error;
+		try {
+			PersistentState.MergeResult [] results = SyncProtocol.loopback(local, full);
+			if (results[0].newPS == null || results[1].newPS == null) {
+				error = results[0].message + " / " + results[1].message;
+			} else {
+				StringWriter a = new StringWriter(), b = new StringWriter();
+				results[0].newPS.save(a);
+				results[1].newPS.save(b);
+				error = a.toString().equals(b.toString()) ? null : "histories differ";
+				if (results[0].newPS.historySize() != full.historySize() + 1)
+					error = "history size " + results[0].newPS.historySize();
+			}
+		} catch (Exception x) {
+			error = x.toString();
+		}
+		report.append("  sync check: ").append(error == null ? "ok" : "FAILED " + error).append("\n");
+	}
+
+	/* Reports the median of ROUNDS timed runs after WARMUP untimed ones. */
+	private void time (String label, Op op)
+	{
+		long [] samples = new long [ROUNDS];
+		try {
+			for (int i = 0; i < WARMUP; i ++)
+				op.run();
+			for (int i = 0; i < ROUNDS; i ++) {
+				long start = System.nanoTime();
+				op.run();
+				samples[i] = System.nanoTime() - start;
+			}
+		} catch (Exception x) {
+			report.append("  ").append(label).append(": failed ").append(x).append("\n");
+			return;
+		}
+		Arrays.sort(samples);
+		report.append("  ").append(label).append(": ").
+			append(samples[ROUNDS / 2] / 1000 / 1000.0).append(" ms\n");
+	}
+
+	private static int offsetOfLine (String text, int line)
+	{
+		int ptr = 0;
+		for (int i = 0; i < line; i ++)
+			ptr = text.indexOf('\n', ptr) + 1;
+		return ptr;
+	}
+}
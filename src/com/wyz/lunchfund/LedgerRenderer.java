@@ -0,0 +1,89 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Prepares the main screen's people rows and history text on a worker
+ * thread, from a snapshot, so the UI thread only has to set them. Each
+ * request bumps a generation; the previous render is cancelled, and a
+ * render that is no longer the newest is dropped between stages and
+ * never reaches the listener. */
+public class LedgerRenderer
+{
+	public static class Row {
+		public final String name;
+		public final String label;
+		public Row (String name, String label) {
+			this.name = name;
+			this.label = label;
+		}
+	}
+
+	public static class Frame {
+		public final long generation;
+		public final List<Row> rows;
+		public final String history;
+		public Frame (long generation, List<Row> rows, String history) {
+			this.generation = generation;
+			this.rows = rows;
+			this.history = history;
+		}
+	}
+
+	public interface Listener {
+		/* Called on the worker thread. The frame may already be stale by
+		 * the time it is shown; check isCurrent() on the UI thread. */
+		void onRendered (Frame frame);
+	}
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+	private final int historyLimit;
+	private final Listener listener;
+	private long generation = 0;
+	private Future<?> pending = null;
+	private boolean shutdown = false;
+
+	public LedgerRenderer (int historyLimit, Listener listener)
+	{
+		this.historyLimit = historyLimit;
+		this.listener = listener;
+	}
+
+	/* Returns the generation of the render, or -1 after shutdown(), when
+	 * late callers are ignored. */
+	public synchronized long request (final PersistentState.Snapshot snap)
+	{
+		if (shutdown)
+			return -1;
+		final long gen = ++ generation;
+		if (pending != null && pending.cancel(true))
+			Stats.record("render.cancelled", 1);
+		pending = worker.submit(new Runnable() {
+				public void run () {
+					long start = Stats.start();
+					List<Row> rows = new ArrayList<Row>();
+					for (PersistentState.Person p : snap.listPeople(2))
+						rows.add(new Row(p.name, p.name + (p.balance < 0 ? ": -$" : ": $") + (Math.abs(p.balance) / 100.0)));
+					if (!isCurrent(gen))
+						return;
+					String history = snap.showRecentHistory(historyLimit);
+					if (!isCurrent(gen))
+						return;
+					Stats.recordTime("render", start);
+					listener.onRendered(new Frame(gen, rows, history));
+				}
+			});
+		return gen;
+	}
+
+	public synchronized boolean isCurrent (long gen)
+	{
+		return gen == generation;
+	}
+
+	public synchronized void shutdown ()
+	{
+		shutdown = true;
+		worker.shutdownNow();
+	}
+}
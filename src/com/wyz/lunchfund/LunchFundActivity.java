@@ -9,7 +9,10 @@ import android.content.ClipData;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.util.Log;
 import android.widget.*;
@@ -18,17 +21,61 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.Window;
 import android.view.View;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LunchFundActivity extends Activity
 {
+	private static final int REQUEST_IMPORT_CSV = 1;
+	private static final int REQUEST_SEND_STATEMENT = 2;
+	private static final int REQUEST_MERGE_FILE = 3;
+	// Bursts of lunches and transfers within this window share one save.
+	private static final long AUTOSAVE_DELAY_MS = 2000;
+	// A steady stream of changes still saves at least this often.
+	private static final long AUTOSAVE_MAX_DELAY_MS = 10000;
+	// The log view shows this many transactions; Search and Email Log reach the rest.
+	private static final int LOG_VIEW_LIMIT = 200;
+
 	private PersistentState pstate;
 	Set<String> checkedPeople = new HashSet<String>();
+	private final Handler handler = new Handler();
+	// Builds what redraw() shows off the UI thread.
+	private LedgerRenderer renderer;
+	// Statements waiting to be handed to the mail app, one at a time.
+	private final LinkedList<StatementGenerator.Statement> pendingStatements = new LinkedList<StatementGenerator.Statement>();
+	private final Runnable autosave = new Runnable() {
+		public void run () {
+			saveHistory();
+			saveIndex();
+		}
+	};
+	// Saves run here, one at a time, on a snapshot of the state.
+	private final ExecutorService saver = Executors.newSingleThreadExecutor();
+	// When the pending autosave was first scheduled, 0 if none is pending.
+	private long autosaveSince = 0;
+	// Listening for Sync: Host, closed by onDestroy().
+	private ServerSocket syncServer = null;
+	// Set by onDestroy(); worker results for this instance are dropped.
+	private boolean destroyed = false;
 
 	/** Called when the activity is first created. */
 	@Override
@@ -36,20 +83,32 @@ public class LunchFundActivity extends Activity
 	{
 		super.onCreate(savedInstanceState);
 
-		try {
-			pstate = PersistentState.load(new InputStreamReader(openFileInput("history.txt"), "UTF-8"));
-		} catch (FileNotFoundException x) {
-		} catch (UnsupportedEncodingException x) {
-			Log.e("LunchFundActivity", "onCreate", x);
-		}
+		pstate = PersistentState.loadLazy(getFileStreamPath("history.txt"));
 		if (pstate == null)
 			pstate = new PersistentState();
 		pstate.clearModified();
+		final PersistentState loaded = pstate;
+		saver.submit(new Runnable() {
+				public void run () {
+					loaded.loadIndex(getFileStreamPath("history.idx"));
+				}
+			});
+		renderer = new LedgerRenderer(LOG_VIEW_LIMIT, new LedgerRenderer.Listener() {
+				public void onRendered (final LedgerRenderer.Frame frame) {
+					handler.post(new Runnable() {
+							public void run () {
+								if (renderer.isCurrent(frame.generation) && !isFinishing())
+									show(frame);
+							}
+						});
+				}
+			});
 
 		if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE)
 			setContentView(R.layout.landscape);
 		else
 			setContentView(R.layout.main);
+		setupDiagnostics();
 		redraw();
 	}
 
@@ -61,23 +120,95 @@ public class LunchFundActivity extends Activity
 			setContentView(R.layout.landscape);
 		else
 			setContentView(R.layout.main);
+		setupDiagnostics();
 		redraw();
 	}
 
 	@Override
 	protected void onPause ()
 	{
+		// The process may be killed once we are in the background, so wait
+		// for this save and any still queued. The search index is left to
+		// autosave; a stale one is detected on load and rebuilt.
+		Future<?> saved = saveHistory();
 		try {
-			if (pstate.isModified()) {
-				pstate.save(new OutputStreamWriter(openFileOutput("history.txt", MODE_PRIVATE), "UTF-8"));
-				pstate.clearModified();
-			}
+			if (saved != null)
+				saved.get();
 		} catch (Exception x) {
-			Log.e("LunchFundActivity", "onPause: save", x);
+			Log.e("LunchFundActivity", "onPause", x);
 		}
 		super.onPause();
 	}
 
+	@Override
+	protected void onDestroy ()
+	{
+		destroyed = true;
+		closeSyncServer();
+		renderer.shutdown();
+		saver.shutdown();
+		super.onDestroy();
+	}
+
+	/* Queues a save of the current state on the saver thread. Returns
+	 * its Future, or null if it already ran here. */
+	private Future<?> saveHistory ()
+	{
+		handler.removeCallbacks(autosave);
+		autosaveSince = 0;
+		final PersistentState ps = pstate;
+		Runnable save = new Runnable() {
+				public void run () {
+					if (!ps.isModified())
+						return;
+					try {
+						ps.saveAtomic(getFileStreamPath("history.txt"));
+					} catch (final Exception x) {
+						Log.e("LunchFundActivity", "saveHistory", x);
+						runOnUiThread(new Runnable() {
+								public void run () {
+									Toast.makeText(getApplicationContext(), "Error saving history: " + x.getMessage(), Toast.LENGTH_LONG).show();
+								}
+							});
+					}
+				}
+			};
+		// A dialog may still change the state after onDestroy().
+		if (!saver.isShutdown())
+			return saver.submit(save);
+		save.run();
+		return null;
+	}
+
+	/* Queues a write of the search index, if it changed, on the saver
+	 * thread. Only autosave calls this, so onPause() never waits on it. */
+	private void saveIndex ()
+	{
+		final PersistentState ps = pstate;
+		if (saver.isShutdown())
+			return;
+		saver.submit(new Runnable() {
+				public void run () {
+					try {
+						ps.saveIndex(getFileStreamPath("history.idx"));
+					} catch (Exception x) {
+						Log.e("LunchFundActivity", "saveIndex", x);
+					}
+				}
+			});
+	}
+
+	/* Debounces saves by AUTOSAVE_DELAY_MS, but never puts one off for
+	 * more than AUTOSAVE_MAX_DELAY_MS. */
+	private void scheduleSave ()
+	{
+		long now = SystemClock.uptimeMillis();
+		if (autosaveSince == 0)
+			autosaveSince = now;
+		handler.removeCallbacks(autosave);
+		handler.postDelayed(autosave, Math.max(0, Math.min(AUTOSAVE_DELAY_MS, autosaveSince + AUTOSAVE_MAX_DELAY_MS - now)));
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu (Menu menu)
 	{
@@ -96,26 +227,56 @@ public class LunchFundActivity extends Activity
 		menu.findItem(R.id.lunch).setEnabled(checkedPeople.size() > 0);
 		menu.findItem(R.id.transfer).setEnabled(true);
 		menu.findItem(R.id.email).setEnabled(checkedPeople.size() > 0);
+		menu.findItem(R.id.emailStatements).setEnabled(checkedPeople.size() > 0);
 		menu.findItem(R.id.addperson).setEnabled(true);
 
 		menu.findItem(R.id.undo).setEnabled(pstate.hasHistory());
 		menu.findItem(R.id.redo).setEnabled(pstate.hasUndoHistory());
 		menu.findItem(R.id.exportToClipboard).setEnabled(true);
 		menu.findItem(R.id.mergeFromClipboard).setEnabled(true);
+		menu.findItem(R.id.mergeSeveral).setEnabled(true);
+		menu.findItem(R.id.exportToFile).setEnabled(pstate.hasHistory());
+		menu.findItem(R.id.mergeFromFile).setEnabled(true);
+		menu.findItem(R.id.syncHost).setEnabled(true);
+		menu.findItem(R.id.syncConnect).setEnabled(true);
+		menu.findItem(R.id.importCsv).setEnabled(true);
+		menu.findItem(R.id.monthlyReport).setEnabled(pstate.hasHistory());
+		menu.findItem(R.id.search).setEnabled(pstate.hasHistory());
+		menu.findItem(R.id.settleUp).setEnabled(pstate.hasHistory());
 		menu.findItem(R.id.changeEmail).setEnabled(checkedPeople.size() == 1);
 		return true;
 	}
 
 	private void redraw ()
 	{
+		long start = Stats.start();
+		if (pstate.isModified())
+			scheduleSave();
 		invalidateOptionsMenu();
 
+		renderer.request(pstate.snapshot());
+		Stats.recordTime("redraw", start);
+	}
+
+	/* Shows a frame from the renderer, reusing the check boxes already
+	 * in the layout. */
+	private void show (LedgerRenderer.Frame frame)
+	{
+		long start = Stats.start();
 		LinearLayout peoplelayout = (LinearLayout)findViewById(R.id.peoplelayout);
-		peoplelayout.removeAllViews();
-		for (PersistentState.Person person : pstate.listPeople(2)) {
-			final String name = person.name;
-			CheckBox cbox = new CheckBox(this);
-			cbox.setText(name + (person.balance < 0 ? ": -$" : ": $") + (Math.abs(person.balance) / 100.0));
+		int i = 0;
+		for (LedgerRenderer.Row row : frame.rows) {
+			final String name = row.name;
+			CheckBox cbox;
+			if (i < peoplelayout.getChildCount()) {
+				cbox = (CheckBox)peoplelayout.getChildAt(i);
+			} else {
+				cbox = new CheckBox(this);
+				peoplelayout.addView(cbox);
+			}
+			i ++;
+			cbox.setOnCheckedChangeListener(null);
+			cbox.setText(row.label);
 			cbox.setChecked(checkedPeople.contains(name));
 			cbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
 					public void onCheckedChanged (CompoundButton buttonView, boolean isChecked)
@@ -127,10 +288,59 @@ public class LunchFundActivity extends Activity
 						redraw();
 					}
 				});
-			peoplelayout.addView(cbox);
 		}
+		if (i < peoplelayout.getChildCount())
+			peoplelayout.removeViews(i, peoplelayout.getChildCount() - i);
+
+		((TextView)findViewById(R.id.logview)).setText(frame.history);
+		Stats.recordTime("redraw.show", start);
+	}
+
+	/* Hidden diagnostics screen: long press on the history log. */
+	private void setupDiagnostics ()
+	{
+		findViewById(R.id.logview).setOnLongClickListener(new View.OnLongClickListener() {
+				public boolean onLongClick (View v) {
+					showDiagnostics(Stats.dump());
+					return true;
+				}
+			});
+	}
 
-		((TextView)findViewById(R.id.logview)).setText(pstate.showHistory(true));
+	private void showDiagnostics (final String text)
+	{
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Diagnostics");
+		builder.setMessage(text);
+		builder.setPositiveButton("Copy", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					ClipboardManager clipMan = (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
+					clipMan.setPrimaryClip(ClipData.newPlainText("text", text));
+					Toast.makeText(getApplicationContext(), "Diagnostics copied to clipboard.", Toast.LENGTH_SHORT).show();
+				}
+			});
+		builder.setNeutralButton("Benchmark", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					Toast.makeText(getApplicationContext(), "Benchmark running...", Toast.LENGTH_SHORT).show();
+					new Thread(new Runnable() {
+							public void run () {
+								final String report = LedgerBenchmark.runDefault();
+								runOnUiThread(new Runnable() {
+										public void run () {
+											if (!isFinishing())
+												showDiagnostics(report);
+										}
+									});
+							}
+						}).start();
+				}
+			});
+		builder.setNegativeButton("Reset", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					Stats.reset();
+				}
+			});
+		builder.show();
 	}
 
 	public void onLunch (MenuItem mitem)
@@ -323,7 +533,43 @@ public class LunchFundActivity extends Activity
 		ClipboardManager clipMan = (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
 		ClipData.Item citem = clipMan.getPrimaryClip().getItemAt(0);
 		String data = citem.getText().toString();
-		final PersistentState.MergeResult result = pstate.merge(data);
+		confirmMerge(pstate.merge(data));
+	}
+
+	/* Merges several pasted exports, separated by blank lines, with one
+	 * confirmation. Starts with whatever is on the clipboard. */
+	public void onMergeSeveral (MenuItem item)
+	{
+		AlertDialog.Builder alert = new AlertDialog.Builder(this);
+		alert.setTitle("Merge Several");
+		final EditText input = new EditText(this);
+		input.setHint("paste exports, one blank line between them");
+		input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+		input.setMinLines(4);
+		ClipboardManager clipMan = (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
+		if (clipMan.hasPrimaryClip() && clipMan.getPrimaryClip().getItemCount() > 0) {
+			CharSequence clip = clipMan.getPrimaryClip().getItemAt(0).getText();
+			if (clip != null)
+				input.setText(clip.toString().trim() + "\n\n");
+		}
+		alert.setView(input);
+		alert.setPositiveButton("Merge", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					List<InputStream> exports = new ArrayList<InputStream>();
+					for (String export : input.getText().toString().split("\n\\s*\n"))
+						if (export.trim().length() > 0)
+							exports.add(new ByteArrayInputStream(export.trim().getBytes()));
+					if (exports.size() == 0)
+						return;
+					confirmMerge(pstate.mergeAll(exports));
+				}
+			});
+		alert.setNegativeButton("Cancel", null);
+		alert.show();
+	}
+
+	private void confirmMerge (final PersistentState.MergeResult result)
+	{
 		if (result.newPS == null) {
 			Toast.makeText(this, result.message, Toast.LENGTH_LONG).show();
 			return;
@@ -335,10 +581,7 @@ public class LunchFundActivity extends Activity
 		builder.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
 				public void onClick(DialogInterface dialog, int id) {
 					pstate = result.newPS;
-					try {
-						pstate.save(new OutputStreamWriter(openFileOutput("history.txt", MODE_PRIVATE), "UTF-8"));
-					} catch (Exception x) { throw new RuntimeException(x); }
-					pstate.clearModified();
+					saveHistory();
 					checkedPeople.clear();
 					Toast.makeText(getApplicationContext(), "Log merged", Toast.LENGTH_SHORT).show();
 					redraw();
@@ -348,6 +591,329 @@ public class LunchFundActivity extends Activity
 		builder.show();
 	}
 
+	/* Waits for another phone to connect and syncs with it. */
+	public void onSyncHost (MenuItem item)
+	{
+		closeSyncServer();
+		final ServerSocket server;
+		try {
+			server = new ServerSocket(SyncProtocol.PORT);
+			server.setSoTimeout(SyncProtocol.ACCEPT_TIMEOUT_MS);
+		} catch (IOException x) {
+			Toast.makeText(this, "Cannot listen: " + x.getMessage(), Toast.LENGTH_LONG).show();
+			return;
+		}
+		syncServer = server;
+		final String code = SyncProtocol.newPairingCode();
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Sync");
+		builder.setMessage("On the other phone, choose Sync: Connect and enter\n" + localAddresses() +
+			"\nPairing code: " + code);
+		builder.setCancelable(false);
+		builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					closeSyncServer();
+				}
+			});
+		runMerge(builder.show(), "Sync", new Callable<PersistentState.MergeResult>() {
+				public PersistentState.MergeResult call () throws Exception {
+					try {
+						return SyncProtocol.accept(pstate, server, code);
+					} catch (SocketTimeoutException x) {
+						return new PersistentState.MergeResult(null, "No phone connected. Sync cancelled");
+					} catch (SocketException x) {
+						if (server.isClosed())
+							return new PersistentState.MergeResult(null, "Sync cancelled");
+						throw x;
+					} finally {
+						server.close();
+					}
+				}
+			});
+	}
+
+	private void closeSyncServer ()
+	{
+		if (syncServer == null)
+			return;
+		try {
+			syncServer.close();
+		} catch (IOException x) {
+		}
+		syncServer = null;
+	}
+
+	public void onSyncConnect (MenuItem item)
+	{
+		AlertDialog.Builder alert = new AlertDialog.Builder(this);
+		alert.setTitle("Sync: Connect");
+		LinearLayout layout = new LinearLayout(this);
+		layout.setOrientation(LinearLayout.VERTICAL);
+		final EditText input = new EditText(this);
+		input.setHint("address shown on the other phone");
+		input.setInputType(InputType.TYPE_CLASS_PHONE);
+		layout.addView(input);
+		final EditText codeInput = new EditText(this);
+		codeInput.setHint("pairing code");
+		codeInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+		layout.addView(codeInput);
+		alert.setView(layout);
+		alert.setPositiveButton("Connect", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					final String host = input.getText().toString().trim();
+					final String code = codeInput.getText().toString().trim();
+					if (host.length() == 0 || code.length() == 0)
+						return;
+					AlertDialog.Builder builder = new AlertDialog.Builder(LunchFundActivity.this);
+					builder.setTitle("Sync");
+					builder.setMessage("Syncing with " + host + "...");
+					builder.setCancelable(false);
+					runMerge(builder.show(), "Sync", new Callable<PersistentState.MergeResult>() {
+							public PersistentState.MergeResult call () throws Exception {
+								return SyncProtocol.connect(pstate, host, SyncProtocol.PORT, code);
+							}
+						});
+				}
+			});
+		alert.setNegativeButton("Cancel", null);
+		alert.show();
+	}
+
+	/* Runs a sync or merge off the UI thread, then dismisses progress and
+	 * asks to confirm the merge like any other. */
+	private void runMerge (final Dialog progress, final String what, final Callable<PersistentState.MergeResult> merge)
+	{
+		new Thread(new Runnable() {
+				public void run () {
+					PersistentState.MergeResult result;
+					try {
+						result = merge.call();
+					} catch (Exception x) {
+						Log.e("LunchFundActivity", what, x);
+						result = new PersistentState.MergeResult(null, what + " failed: " + x.getMessage());
+					}
+					final PersistentState.MergeResult r = result;
+					runOnUiThread(new Runnable() {
+							public void run () {
+								// A rotation destroys this instance and its
+								// dialogs; the result is dropped with them.
+								if (destroyed)
+									return;
+								progress.dismiss();
+								confirmMerge(r);
+							}
+						});
+				}
+			}).start();
+	}
+
+	private static String localAddresses ()
+	{
+		StringBuilder sb = new StringBuilder();
+		try {
+			for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces()))
+				for (InetAddress addr : Collections.list(nif.getInetAddresses()))
+					if (addr instanceof Inet4Address && !addr.isLoopbackAddress())
+						sb.append(addr.getHostAddress()).append("\n");
+		} catch (SocketException x) {
+			Log.e("LunchFundActivity", "localAddresses", x);
+		}
+		return sb.length() == 0 ? "(not connected to a network)" : sb.toString();
+	}
+
+	/* Exports the whole history to a file and offers to share it. A file
+	 * has no size limit, so unlike the clipboard it can carry everything.
+	 * The file is written from a snapshot on a worker thread. */
+	public void onExportFile (MenuItem item)
+	{
+		if (!pstate.hasHistory()) {
+			Toast.makeText(this, "nothing to export", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			Toast.makeText(this, "External storage not available", Toast.LENGTH_LONG).show();
+			return;
+		}
+		final File file = new File(dir, "lunchfund-export.lz");
+		final PersistentState.Snapshot snap = pstate.snapshot();
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Export to File");
+		builder.setMessage("Writing " + snap.historySize() + " transactions...");
+		builder.setCancelable(false);
+		final Dialog progress = builder.show();
+		new Thread(new Runnable() {
+				public void run () {
+					Exception failure = null;
+					try {
+						FileOutputStream fos = new FileOutputStream(file);
+						try {
+							OutputStream out = new BufferedOutputStream(Channels.newOutputStream(fos.getChannel()), 65536);
+							snap.exportTo(snap.historySize(), out);
+							out.flush();
+						} finally {
+							fos.close();
+						}
+					} catch (Exception x) {
+						Log.e("LunchFundActivity", "onExportFile", x);
+						failure = x;
+					}
+					final Exception f = failure;
+					runOnUiThread(new Runnable() {
+							public void run () {
+								if (destroyed)
+									return;
+								progress.dismiss();
+								if (f != null)
+									Toast.makeText(getApplicationContext(), "Export failed: " + f.getMessage(), Toast.LENGTH_LONG).show();
+								else
+									shareExport(file);
+							}
+						});
+				}
+			}).start();
+	}
+
+	private void shareExport (File file)
+	{
+		Intent i = new Intent(Intent.ACTION_SEND);
+		i.setType("application/octet-stream");
+		i.putExtra(Intent.EXTRA_SUBJECT, "Lunch Fund Export");
+		i.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+		try {
+			startActivity(Intent.createChooser(i, "Share export..."));
+		} catch (ActivityNotFoundException x) {
+			Toast.makeText(this, "History exported to " + file, Toast.LENGTH_LONG).show();
+		}
+	}
+
+	public void onMergeFile (MenuItem item)
+	{
+		Intent i = new Intent(Intent.ACTION_GET_CONTENT);
+		i.setType("*/*");
+		i.addCategory(Intent.CATEGORY_OPENABLE);
+		try {
+			startActivityForResult(Intent.createChooser(i, "Merge from File"), REQUEST_MERGE_FILE);
+		} catch (ActivityNotFoundException x) {
+			Toast.makeText(this, "There are no file pickers installed", Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	private void mergeFile (final Intent data)
+	{
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Merge from File");
+		builder.setMessage("Reading file...");
+		builder.setCancelable(false);
+		runMerge(builder.show(), "Merge from File", new Callable<PersistentState.MergeResult>() {
+				public PersistentState.MergeResult call () throws Exception {
+					InputStream in = getContentResolver().openInputStream(data.getData());
+					try {
+						return pstate.merge(in);
+					} finally {
+						in.close();
+					}
+				}
+			});
+	}
+
+	public void onImportCsv (MenuItem item)
+	{
+		Intent i = new Intent(Intent.ACTION_GET_CONTENT);
+		i.setType("text/*");
+		i.addCategory(Intent.CATEGORY_OPENABLE);
+		try {
+			startActivityForResult(Intent.createChooser(i, "Import CSV"), REQUEST_IMPORT_CSV);
+		} catch (ActivityNotFoundException x) {
+			Toast.makeText(this, "There are no file pickers installed", Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	protected void onActivityResult (int requestCode, int resultCode, Intent data)
+	{
+		if (requestCode == REQUEST_SEND_STATEMENT)
+			askNextStatement();
+		else if (requestCode == REQUEST_IMPORT_CSV && resultCode == RESULT_OK && data != null)
+			importCsv(data);
+		else if (requestCode == REQUEST_MERGE_FILE && resultCode == RESULT_OK && data != null)
+			mergeFile(data);
+	}
+
+	/* Reads and checks the file on a worker thread, then asks to confirm. */
+	private void importCsv (final Intent data)
+	{
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Import CSV");
+		builder.setMessage("Reading file...");
+		builder.setCancelable(false);
+		final Dialog progress = builder.show();
+		final PersistentState ps = pstate;
+		new Thread(new Runnable() {
+				public void run () {
+					PersistentState.ImportResult result = null;
+					Exception failure = null;
+					try {
+						InputStream in = getContentResolver().openInputStream(data.getData());
+						try {
+							result = ps.parseCsv(new InputStreamReader(in, "UTF-8"));
+						} finally {
+							in.close();
+						}
+					} catch (Exception x) {
+						Log.e("LunchFundActivity", "onActivityResult: import", x);
+						failure = x;
+					}
+					final PersistentState.ImportResult r = result;
+					final Exception f = failure;
+					runOnUiThread(new Runnable() {
+							public void run () {
+								if (destroyed)
+									return;
+								progress.dismiss();
+								if (f != null)
+									Toast.makeText(getApplicationContext(), "Cannot read file: " + f, Toast.LENGTH_LONG).show();
+								else
+									confirmImport(r);
+							}
+						});
+				}
+			}).start();
+	}
+
+	private void confirmImport (final PersistentState.ImportResult result)
+	{
+		if (result.count == 0) {
+			new AlertDialog.Builder(this)
+				.setTitle("Import Failed")
+				.setMessage(result.message)
+				.setPositiveButton("Ok", null)
+				.show();
+			return;
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Confirm Import");
+		builder.setMessage(result.message);
+		builder.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					try {
+						pstate.performImport(result);
+					} catch (RuntimeException x) {
+						Log.e("LunchFundActivity", "performImport", x);
+						Toast.makeText(getApplicationContext(), "Import failed: " + x.getMessage(), Toast.LENGTH_LONG).show();
+						return;
+					}
+					saveHistory();
+					checkedPeople.clear();
+					Toast.makeText(getApplicationContext(), result.count + " transactions imported", Toast.LENGTH_SHORT).show();
+					redraw();
+				}
+			});
+		builder.setNegativeButton("Cancel", null);
+		builder.show();
+	}
+
 	public void onEmailLog (MenuItem mitem)
 	{
 		if (checkedPeople.size() == 0)
@@ -379,6 +945,152 @@ public class LunchFundActivity extends Activity
 		}
 	}
 
+	/* Sends each selected person their own statement. The statements are
+	 * rendered in parallel off the UI thread, then handed to the mail app
+	 * one after another as each send returns. */
+	public void onEmailStatements (MenuItem mitem)
+	{
+		if (checkedPeople.size() == 0)
+			return;
+		final PersistentState.Snapshot snap = pstate.snapshot();
+		final List<String> names = new ArrayList<String>(checkedPeople);
+		Toast.makeText(this, "Preparing " + names.size() + " statements...", Toast.LENGTH_SHORT).show();
+		new Thread(new Runnable() {
+				public void run () {
+					List<StatementGenerator.Statement> statements = null;
+					try {
+						statements = StatementGenerator.generate(snap, names);
+					} catch (Exception x) {
+						Log.e("LunchFundActivity", "onEmailStatements", x);
+					}
+					final List<StatementGenerator.Statement> result = statements;
+					runOnUiThread(new Runnable() {
+							public void run () {
+								if (result == null) {
+									Toast.makeText(getApplicationContext(), "Error preparing statements", Toast.LENGTH_LONG).show();
+									return;
+								}
+								pendingStatements.clear();
+								pendingStatements.addAll(result);
+								sendNextStatement();
+							}
+						});
+				}
+			}).start();
+	}
+
+	/* Mail apps report RESULT_CANCELED whether or not the mail was sent,
+	 * so ask before handing over the next statement. */
+	private void askNextStatement ()
+	{
+		if (pendingStatements.isEmpty())
+			return;
+		int left = pendingStatements.size();
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Email Statements");
+		builder.setMessage("Send the statement for " + pendingStatements.getFirst().name + "?" +
+			(left > 1 ? " " + left + " statements are left." : ""));
+		builder.setCancelable(false);
+		builder.setPositiveButton("Send", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					sendNextStatement();
+				}
+			});
+		builder.setNegativeButton("Stop", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					pendingStatements.clear();
+				}
+			});
+		builder.show();
+	}
+
+	private void sendNextStatement ()
+	{
+		if (pendingStatements.isEmpty())
+			return;
+		StatementGenerator.Statement statement = pendingStatements.removeFirst();
+		Intent i = new Intent(Intent.ACTION_SEND);
+		i.setType("message/rfc822");
+		i.putExtra(Intent.EXTRA_EMAIL, new String[]{statement.email});
+		i.putExtra(Intent.EXTRA_SUBJECT, "Lunch Fund Log for " + statement.name);
+		i.putExtra(Intent.EXTRA_TEXT, statement.text);
+		try {
+			startActivityForResult(Intent.createChooser(i, "Send mail to " + statement.name + "..."), REQUEST_SEND_STATEMENT);
+		} catch (ActivityNotFoundException x) {
+			pendingStatements.clear();
+			Toast.makeText(getApplicationContext(), "There are no email clients installed", Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	public void onSearch (MenuItem item)
+	{
+		AlertDialog.Builder alert = new AlertDialog.Builder(this);
+		alert.setTitle("Search");
+		final EditText input = new EditText(this);
+		input.setHint("remarks, names, month, year");
+		alert.setView(input);
+		alert.setPositiveButton("Search", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					String query = input.getText().toString().trim();
+					if (query.length() == 0)
+						return;
+					List<String> results = pstate.search(query, 200);
+					StringBuilder sb = new StringBuilder();
+					for (String r : results)
+						sb.append(r).append("\n");
+					new AlertDialog.Builder(LunchFundActivity.this)
+						.setTitle(results.size() + (results.size() == 200 ? "+" : "") + " matches for \"" + query + "\"")
+						.setMessage(results.size() == 0 ? "Nothing found" : sb.toString())
+						.setPositiveButton("Ok", null)
+						.show();
+				}
+			});
+		alert.setNegativeButton("Cancel", null);
+		alert.show();
+	}
+
+	public void onSettleUp (MenuItem item)
+	{
+		final List<SettlePlanner.Transfer> plan = SettlePlanner.plan(pstate.listPeople(1), true);
+		if (plan.size() == 0) {
+			Toast.makeText(this, "Everyone is settled", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (SettlePlanner.Transfer t : plan)
+			sb.append(t).append("\n");
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Settle Up: " + plan.size() + " transfers");
+		builder.setMessage(sb.toString());
+		builder.setPositiveButton("Apply", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					pstate.performSettle(plan);
+					checkedPeople.clear();
+					redraw();
+				}
+			});
+		builder.setNegativeButton("Cancel", null);
+		builder.show();
+	}
+
+	public void onMonthlyReport (MenuItem item)
+	{
+		final String report = pstate.monthlyReport();
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Monthly Report");
+		builder.setMessage(report.length() == 0 ? "No lunches or transfers yet" : report);
+		builder.setPositiveButton("Copy", new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int id) {
+					ClipboardManager clipMan = (ClipboardManager)getSystemService(CLIPBOARD_SERVICE);
+					clipMan.setPrimaryClip(ClipData.newPlainText("text", report));
+					Toast.makeText(getApplicationContext(), "Report copied to clipboard.", Toast.LENGTH_SHORT).show();
+				}
+			});
+		builder.setNegativeButton("Close", null);
+		builder.show();
+	}
+
 	public void onChangeEmail (MenuItem item)
 	{
 		if (checkedPeople.size() != 1)
@@ -3,18 +3,43 @@ package com.wyz.lunchfund;
 import android.util.Log;
 import android.util.Base64;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 public class PersistentState
 {
-	private SortedMap<String, Person> people = new TreeMap<String, Person>();
-	private Stack<Transaction> history = new Stack<Transaction>();
+	// Shared with snapshots and forks: people is immutable and each write
+	// makes a new version; history shares its backing array with them.
+	private SharedMap<Person> people = new SharedMap<Person>();
+	private SharedStack<Transaction> history = new SharedStack<Transaction>();
 	private Stack<Transaction> undoHistory = new Stack<Transaction>();
+	// Imported batches still in history, as {start, end} indices. Each is
+	// one undo unit; any other transaction is a unit of its own.
+	private Stack<int[]> batches = new Stack<int[]>();
+	// Sizes of the undo units in undoHistory.
+	private Stack<Integer> undoUnits = new Stack<Integer>();
+	// Per month (yyyymm) and person: ROLLUP_SPENT, ROLLUP_PAID,
+	// ROLLUP_IN and ROLLUP_OUT in cents. Kept up to date by apply and undo.
+	private TreeMap<Integer, TreeMap<String, long[]>> rollups = new TreeMap<Integer, TreeMap<String, long[]>>();
+	// Months of rollups that only this state uses. The others are shared
+	// with a fork and copied before their first change.
+	private Set<Integer> ownedMonths = new HashSet<Integer>();
+	private final Calendar calendar = Calendar.getInstance();
+	// Built on the first search, or loaded by loadIndex(), then kept up
+	// to date by push and pop.
+	private SearchIndex index = null;
+	private boolean indexModified = false;
 	private boolean modified = false;
+	private long version = 0; // bumped on every change
+	private Snapshot snapshot = null;
 
 	public static PersistentState load (String text)
 	{
@@ -31,42 +56,299 @@ public class PersistentState
 		}
 	}
 
+	/* Loads history.txt keeping each transaction only as its place in the
+	 * file's bytes. Balances and rollups are computed while scanning; a
+	 * full Transaction is decoded again only when rendered, merged or
+	 * undone. */
+	public static PersistentState loadLazy (File file)
+	{
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				FileChannel channel = fis.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE)
+					throw new IOException(file + " too large");
+				ByteBuffer buf = ByteBuffer.allocate((int)size);
+				while (buf.hasRemaining())
+					if (channel.read(buf) < 0)
+						throw new EOFException(file.toString());
+				return _loadLazy(buf.array());
+			} finally {
+				fis.close();
+			}
+		} catch (FileNotFoundException x) {
+			return null;
+		} catch (Exception x) {
+			Log.e("PersistentState", "loadLazy()", x);
+			return null;
+		}
+	}
+
+	public static PersistentState _loadLazy (byte [] log) throws Exception
+	{
+		long start = Stats.start();
+		PersistentState pstate = new PersistentState();
+		LineReader reader = new LineReader(log);
+		int lazy = 0;
+		for (int ptr = 0; ptr < log.length; ) {
+			int end = ptr;
+			while (end < log.length && log[end] != '\n')
+				end ++;
+			int next = end + 1;
+			// same as String.trim()
+			while (ptr < end && (log[ptr] & 0xff) <= ' ')
+				ptr ++;
+			while (end > ptr && (log[end - 1] & 0xff) <= ' ')
+				end --;
+			if (end > ptr) {
+				reader.split(ptr, end);
+				long [] participants = pstate.applyLine(reader);
+				if (participants != null) {
+					pstate.history.push(new LazyTransaction(reader.number(0), log, ptr, end - ptr,
+						pstate.personIds, participants));
+					lazy ++;
+				} else {
+					Transaction trans = loadTransaction(new String(log, ptr, end - ptr, "UTF-8"));
+					trans.apply(pstate);
+					trans.bindParticipants(pstate.personIds);
+					pstate.history.push(trans);
+				}
+			}
+			ptr = next;
+		}
+		pstate.modified = true;
+		pstate.version ++;
+		Stats.recordTime("load.lazy", start);
+		Stats.record("load.bytes", log.length);
+		Stats.record("load.transactions", pstate.history.size());
+		Stats.record("load.lazy.transactions", lazy);
+		return pstate;
+	}
+
+	/* The tab separated fields of one log line, read in place. Names are
+	 * decoded once per distinct name rather than once per line. */
+	private static class LineReader {
+		private final byte [] log;
+		private int [] starts = new int [16];
+		private int [] ends = new int [16];
+		public int count;
+		public String [] scratch = new String [16];
+		private byte [][] keys = new byte [64][];
+		private String [] names = new String [64];
+		private int numNames = 0;
+
+		public LineReader (byte [] log)
+		{
+			this.log = log;
+		}
+
+		/* Same fields as String.split("\t") on a trimmed line. */
+		public void split (int ptr, int end)
+		{
+			count = 0;
+			int start = ptr;
+			for (int i = ptr; i <= end; i ++) {
+				if (i < end && log[i] != '\t')
+					continue;
+				if (count == starts.length) {
+					starts = Arrays.copyOf(starts, count * 2);
+					ends = Arrays.copyOf(ends, count * 2);
+					scratch = new String [count * 2];
+				}
+				starts[count] = start;
+				ends[count ++] = i;
+				start = i + 1;
+			}
+		}
+
+		public boolean is (int field, String ascii)
+		{
+			if (ends[field] - starts[field] != ascii.length())
+				return false;
+			for (int i = 0; i < ascii.length(); i ++)
+				if (log[starts[field] + i] != ascii.charAt(i))
+					return false;
+			return true;
+		}
+
+		public boolean isEmpty (int field)
+		{
+			return ends[field] == starts[field];
+		}
+
+		/* The field as a number in the form Long.toString() writes, up to
+		 * 18 digits, or -1 if it is not one. */
+		public long number (int field)
+		{
+			int start = starts[field], len = ends[field] - start;
+			if (len == 0 || len > 18 || (len > 1 && log[start] == '0'))
+				return -1;
+			long n = 0;
+			for (int i = start; i < start + len; i ++) {
+				if (log[i] < '0' || log[i] > '9')
+					return -1;
+				n = n * 10 + (log[i] - '0');
+			}
+			return n;
+		}
+
+		public String name (int field) throws UnsupportedEncodingException
+		{
+			int start = starts[field], len = ends[field] - start;
+			int mask = keys.length - 1;
+			int slot = hash(log, start, len) & mask;
+			for (; keys[slot] != null; slot = (slot + 1) & mask)
+				if (equals(keys[slot], start, len))
+					return names[slot];
+			String name = new String(log, start, len, "UTF-8");
+			keys[slot] = Arrays.copyOfRange(log, start, start + len);
+			names[slot] = name;
+			if (++ numNames * 2 > keys.length)
+				rehash();
+			return name;
+		}
+
+		private boolean equals (byte [] key, int start, int len)
+		{
+			if (key.length != len)
+				return false;
+			for (int i = 0; i < len; i ++)
+				if (key[i] != log[start + i])
+					return false;
+			return true;
+		}
+
+		private void rehash ()
+		{
+			byte [][] oldKeys = keys;
+			String [] oldNames = names;
+			keys = new byte [oldKeys.length * 2][];
+			names = new String [oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i ++) {
+				if (oldKeys[i] == null)
+					continue;
+				int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+				while (keys[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				names[slot] = oldNames[i];
+			}
+		}
+
+		private static int hash (byte [] buf, int start, int len)
+		{
+			int h = 0;
+			for (int i = start; i < start + len; i ++)
+				h = h * 31 + buf[i];
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/* Applies a lunch or transfer line straight from its fields, as the
+	 * Transaction would. Returns its participants, or null without any
+	 * change if the line is anything else, is not in the form save()
+	 * writes, or would fail; loadTransaction() then handles it. */
+	private long [] applyLine (LineReader r) throws UnsupportedEncodingException
+	{
+		long date = r.number(0);
+		if (date <= 0 || r.count < 6)
+			return null;
+		if (r.is(1, "lunch")) {
+			long amount = r.number(3);
+			if (amount <= 0 || amount > Integer.MAX_VALUE || r.isEmpty(4))
+				return null;
+			int n = r.count - 5;
+			String payer = r.name(2);
+			if (!people.containsKey(payer))
+				return null;
+			for (int i = 0; i < n; i ++) {
+				r.scratch[i] = r.name(5 + i);
+				if (!people.containsKey(r.scratch[i]))
+					return null;
+			}
+			int split = LunchTransaction.roundDiv((int)amount, n);
+			for (int i = 0; i < n; i ++) {
+				addBalance(r.scratch[i], -split);
+				addRollup(date, r.scratch[i], ROLLUP_SPENT, split);
+			}
+			addBalance(payer, split * n);
+			addRollup(date, payer, ROLLUP_PAID, split * n);
+			// Same as LunchTransaction.participantNames()
+			if (split == 0 || (n == 1 && r.scratch[0].equals(payer)))
+				return NOBODY;
+			r.scratch[n] = payer;
+			return personIds.bitmap(Arrays.asList(r.scratch).subList(0, n + 1), true);
+		} else if (r.is(1, "transfer")) {
+			long amount = r.number(4);
+			if (r.count != 6 || amount <= 0 || amount > Integer.MAX_VALUE || r.isEmpty(5))
+				return null;
+			String from = r.name(2), to = r.name(3);
+			if (from.equals(to) || !people.containsKey(from) || !people.containsKey(to))
+				return null;
+			addBalance(from, (int)amount);
+			addBalance(to, -(int)amount);
+			addRollup(date, from, ROLLUP_OUT, amount);
+			addRollup(date, to, ROLLUP_IN, amount);
+			return personIds.bitmap(Arrays.asList(from, to), true);
+		}
+		return null;
+	}
+
 	public static PersistentState _load (Reader in) throws Exception
 	{
+		long start = Stats.start();
+		long chars = 0;
 		PersistentState pstate = new PersistentState();
 		BufferedReader reader = new BufferedReader(in);
 		while (true) {
 			String line = reader.readLine();
 			if (line == null)
 				break;
+			chars += line.length() + 1;
 			line = line.trim();
 			if (line.length() == 0)
 				continue;
 			Transaction trans = loadTransaction(line);
 			pstate.apply(trans);
 		}
+		Stats.recordTime("load", start);
+		Stats.record("load.chars", chars);
+		Stats.record("load.transactions", pstate.history.size());
 		return pstate;
 	}
 
 	public void save (Writer out) throws IOException
 	{
-		PrintWriter writer = new PrintWriter(out);
-		for (Transaction trans : history) {
-			writer.println(trans.save());
-		}
-		writer.close();
+		snapshot().save(out);
 	}
 
-	public boolean isModified ()
+	/* Saves a snapshot, so it may run on a background thread while
+	 * transactions are applied. Changes made meanwhile stay modified. */
+	public void saveAtomic (File file) throws IOException
+	{
+		Snapshot snap = snapshot();
+		snap.saveAtomic(file);
+		clearModified(snap.version);
+	}
+
+	public synchronized boolean isModified ()
 	{
 		return modified;
 	}
 
-	public void clearModified ()
+	public synchronized void clearModified ()
 	{
 		modified = false;
 	}
 
+	private synchronized void clearModified (long savedVersion)
+	{
+		if (version == savedVersion)
+			modified = false;
+	}
+
 	private static Transaction loadTransaction (String line)
 	{
 		String [] arr = line.split("\t");
@@ -88,10 +370,12 @@ public class PersistentState
 		}
 	}
 
+	/* Immutable. A change of balance or email replaces the Person, so
+	 * objects handed out by listPeople() and getPerson() never change. */
 	public static class Person {
-		public String name;
-		public String email;
-		public int balance;
+		public final String name;
+		public final String email;
+		public final int balance;
 		public Person (String name, String email, int balance) {
 			this.name = name;
 			this.email = email;
@@ -99,19 +383,133 @@ public class PersistentState
 		}
 	}
 
+	private static final long [] NOBODY = new long [0];
+
+	/* Small ids for the person names of one ledger, shared with its forks,
+	 * used as bit positions in Transaction.participants(). Ids are only
+	 * ever added, so a bitmap stays valid for the life of the ledger. */
+	private static class PersonIds {
+		private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+		/* Names without an id get one if register is set and are skipped
+		 * otherwise; no transaction can involve them. */
+		public synchronized long [] bitmap (Collection<String> names, boolean register)
+		{
+			long [] bits = NOBODY;
+			for (String name : names) {
+				Integer id = ids.get(name);
+				if (id == null) {
+					if (!register)
+						continue;
+					id = ids.size();
+					ids.put(name, id);
+				}
+				if (id / 64 >= bits.length)
+					bits = Arrays.copyOf(bits, id / 64 + 1);
+				bits[id / 64] |= 1L << id;
+			}
+			return bits;
+		}
+	}
+
+	private PersonIds personIds = new PersonIds();
+
+	private static boolean intersects (long [] a, long [] b)
+	{
+		for (int i = Math.min(a.length, b.length) - 1; i >= 0; i --)
+			if ((a[i] & b[i]) != 0)
+				return true;
+		return false;
+	}
+
 	private static abstract class Transaction {
 		protected final long date; // Number of milliseconds since 1970 GMT. Same as Date.getTime() and System.currentTimeMillis()
 		public abstract void apply (PersistentState pstate);
 		public abstract void undo (PersistentState pstate);
 		public abstract String save ();
 		public abstract String description ();
+		/* The words a user may search for: names, remarks other than the
+		 * "nothing" placeholder and the amount as description() shows it. */
+		public abstract String searchText ();
 		public abstract int effectToPerson (String name);
+		/* The people with a nonzero effectToPerson(). */
+		public abstract Collection<String> participantNames ();
+		// participantNames() as a bitmap over participantIds, set when the
+		// transaction is pushed to a ledger, before any snapshot sees it.
+		protected long [] participants = null;
+		protected PersonIds participantIds = null;
 		public Transaction (long date) {
 			this.date = date == 0 ? System.currentTimeMillis() : date;
 		}
+		public void bindParticipants (PersonIds ids) {
+			if (participantIds != ids) {
+				participants = ids.bitmap(participantNames(), true);
+				participantIds = ids;
+			}
+		}
+		public long [] participants (PersonIds ids) {
+			return participantIds == ids ? participants : ids.bitmap(participantNames(), true);
+		}
 		public boolean equals (Object o) {
 			return o instanceof Transaction ? ((Transaction)o).save().equals(save()) : false;
 		}
+		/* The eaters if this is a lunch, null otherwise. */
+		public String [] lunchEaters () {
+			return null;
+		}
+		/* The full transaction, for code that looks at a concrete type. */
+		public Transaction materialize () {
+			return this;
+		}
+	}
+
+	/* A transaction kept as its line in a loaded log. Everything but the
+	 * date and participants is decoded from the bytes on each use. */
+	private static class LazyTransaction extends Transaction {
+		private final byte [] log;
+		private final int offset;
+		private final int length;
+		public LazyTransaction (long date, byte [] log, int offset, int length, PersonIds ids, long [] participants)
+		{
+			super(date);
+			this.log = log;
+			this.offset = offset;
+			this.length = length;
+			participantIds = ids;
+			this.participants = participants;
+		}
+		public Transaction materialize ()
+		{
+			return loadTransaction(save());
+		}
+		public void apply (PersistentState pstate) {materialize().apply(pstate);}
+		public void undo (PersistentState pstate) {materialize().undo(pstate);}
+		public String save ()
+		{
+			try {
+				return new String(log, offset, length, "UTF-8");
+			} catch (UnsupportedEncodingException x) {
+				throw new RuntimeException(x);
+			}
+		}
+		public String description () {return materialize().description();}
+		public String searchText () {return materialize().searchText();}
+		public int effectToPerson (String name) {return materialize().effectToPerson(name);}
+		public Collection<String> participantNames () {return materialize().participantNames();}
+		public String [] lunchEaters ()
+		{
+			// Check the type field before decoding anything.
+			int type = offset;
+			while (log[type] != '\t')
+				type ++;
+			byte [] lunch = {'\t', 'l', 'u', 'n', 'c', 'h', '\t'};
+			if (type + lunch.length > offset + length)
+				return null;
+			for (int i = 0; i < lunch.length; i ++)
+				if (log[type + i] != lunch[i])
+					return null;
+			return materialize().lunchEaters();
+		}
 	}
 
 	private static class AddTransaction extends Transaction {
@@ -127,17 +525,19 @@ public class PersistentState
 		{
 			if (pstate.people.containsKey(name))
 				throw new RuntimeException("AddTransaction.apply(): exist user " + name);
-			pstate.people.put(name, new Person(name, email, 0));
+			pstate.putPerson(new Person(name, email, 0));
 		}
 		public void undo (PersistentState pstate)
 		{
 			if (!pstate.people.containsKey(name))
 				throw new RuntimeException("AddTransaction.undo(): no user " + name);
-			pstate.people.remove(name);
+			pstate.removePerson(name);
 		}
 		public String save () {return date + "\tadd\t" + name + "\t" + email;}
 		public String description () {return "add " + name + " <" + email + ">";}
+		public String searchText () {return name + " " + email;}
 		public int effectToPerson (String name) {return 0;}
+		public Collection<String> participantNames () {return Collections.emptyList();}
 	}
 
 	private static class TransferTransaction extends Transaction {
@@ -157,13 +557,17 @@ public class PersistentState
 		}
 		public void apply (PersistentState pstate)
 		{
-			pstate.people.get(from).balance += amount;
-			pstate.people.get(to).balance -= amount;
+			pstate.addBalance(from, amount);
+			pstate.addBalance(to, -amount);
+			pstate.addRollup(date, from, ROLLUP_OUT, amount);
+			pstate.addRollup(date, to, ROLLUP_IN, amount);
 		}
 		public void undo (PersistentState pstate)
 		{
-			pstate.people.get(from).balance -= amount;
-			pstate.people.get(to).balance += amount;
+			pstate.addBalance(from, -amount);
+			pstate.addBalance(to, amount);
+			pstate.addRollup(date, from, ROLLUP_OUT, -amount);
+			pstate.addRollup(date, to, ROLLUP_IN, -amount);
 		}
 		public String save () {return date + "\ttransfer\t" + from + "\t" + to + "\t" + amount + "\t" + remarks;}
 		public String description () {
@@ -172,6 +576,9 @@ public class PersistentState
 				DateFormat.getDateInstance().format(new Date(date)) +
 				(remarks.equals("nothing") ? "" : " (" + remarks + ")");
 		}
+		public String searchText () {
+			return from + " " + to + " " + (amount/100.0) + (remarks.equals("nothing") ? "" : " " + remarks);
+		}
 		public int effectToPerson (String name)
 		{
 			if (name.equals(from))
@@ -180,6 +587,7 @@ public class PersistentState
 				return -amount;
 			return 0;
 		}
+		public Collection<String> participantNames () {return Arrays.asList(from, to);}
 	}
 
 	private static class LunchTransaction extends Transaction {
@@ -201,15 +609,21 @@ public class PersistentState
 		}
 		public void apply (PersistentState pstate)
 		{
-			for (String eater : eaters)
-				pstate.people.get(eater).balance -= split;
-			pstate.people.get(payer).balance += split * eaters.length;
+			for (String eater : eaters) {
+				pstate.addBalance(eater, -split);
+				pstate.addRollup(date, eater, ROLLUP_SPENT, split);
+			}
+			pstate.addBalance(payer, split * eaters.length);
+			pstate.addRollup(date, payer, ROLLUP_PAID, split * eaters.length);
 		}
 		public void undo (PersistentState pstate)
 		{
-			for (String eater : eaters)
-				pstate.people.get(eater).balance += split;
-			pstate.people.get(payer).balance -= split * eaters.length;
+			for (String eater : eaters) {
+				pstate.addBalance(eater, split);
+				pstate.addRollup(date, eater, ROLLUP_SPENT, -split);
+			}
+			pstate.addBalance(payer, -split * eaters.length);
+			pstate.addRollup(date, payer, ROLLUP_PAID, -split * eaters.length);
 		}
 		public String save () {
 			StringBuilder sb = new StringBuilder().
@@ -231,6 +645,14 @@ public class PersistentState
 				sb.append(" (" + remarks + ")");
 			return sb.toString();
 		}
+		public String searchText () {
+			StringBuilder sb = new StringBuilder().append(payer).append(" ").append(amount/100.0);
+			for (String eater : eaters)
+				sb.append(" ").append(eater);
+			if (!remarks.equals("nothing"))
+				sb.append(" ").append(remarks);
+			return sb.toString();
+		}
 		public int effectToPerson (String name)
 		{
 			int balance = 0;
@@ -244,6 +666,16 @@ public class PersistentState
 				balance += split * eaters.length;
 			return balance;
 		}
+		public Collection<String> participantNames ()
+		{
+			// Nobody is affected by a zero split, nor by a payer eating alone.
+			if (split == 0 || (eaters.length == 1 && eaters[0].equals(payer)))
+				return Collections.emptyList();
+			List<String> names = new ArrayList<String>(Arrays.asList(eaters));
+			names.add(payer);
+			return names;
+		}
+		public String [] lunchEaters () {return eaters;}
 		public static int roundDiv (int dividend, int divisor)
 		{
 			return (dividend + (divisor / 2)) / divisor;
@@ -269,7 +701,7 @@ public class PersistentState
 			if (!p.email.equals(oldEmail))
 				throw new IllegalArgumentException("expecting \"" + oldEmail +
 						"\", but got " + name + ":\"" + p.email + "\"");
-			p.email = newEmail;
+			pstate.putPerson(new Person(name, newEmail, p.balance));
 		}
 		public void undo (PersistentState pstate)
 		{
@@ -279,172 +711,722 @@ public class PersistentState
 			if (!p.email.equals(newEmail))
 				throw new IllegalArgumentException("expecting \"" + newEmail +
 						"\", but got " + name + ":\"" + p.email + "\"");
-			p.email = oldEmail;
+			pstate.putPerson(new Person(name, oldEmail, p.balance));
 		}
 		public String save () {return date + "\tchemail\t" + name + "\t" + oldEmail + "\t" + newEmail;}
 		public String description ()
 		{
 			return name + "'s new email: " + newEmail + " " + DateFormat.getDateInstance().format(new Date(date));
 		}
+		public String searchText () {return name + " " + oldEmail + " " + newEmail;}
 		public int effectToPerson (String name) { return 0; }
+		public Collection<String> participantNames () {return Collections.emptyList();}
 	}
 
-	public boolean hasHistory ()
+	public synchronized boolean hasHistory ()
 	{
 		return history.size() > 0;
 	}
 
-	public int historySize ()
+	public synchronized int historySize ()
 	{
 		return history.size();
 	}
 
-	public boolean hasUndoHistory ()
+	public synchronized boolean hasUndoHistory ()
 	{
 		return undoHistory.size() > 0;
 	}
 
-	/* sortBy=1: by name
-	 * sortBy=2: by balance ascending
-	 * sortBy=3: frequent eaters goes first */
-	public Iterable<Person> listPeople (int sortBy)
-	{
-		if (sortBy == 1) {
-			return people.values();
-		} else if (sortBy == 2) {
-			ArrayList<Person> list = new ArrayList<Person>(people.values());
-			Collections.sort(list, new Comparator<Person>() {
-					public int compare (Person p1, Person p2) {
-						return p1.balance - p2.balance;
-					}
-			});
-			return list;
-		} else if (sortBy == 3) {
-			final HashMap<String, Double> freqs = new HashMap<String, Double>();
-			for (String p : people.keySet()) freqs.put(p, 0.0);
-			double score = 1.0;
-			for (int i = history.size() - 1; i >= 0; i --) {
-				if (history.get(i) instanceof LunchTransaction) {
-					LunchTransaction t = (LunchTransaction)history.get(i);
-					for (String p : t.eaters)
+	/* An immutable view of people and history at one version of the state.
+	 * Readers on other threads work on a snapshot while the owner keeps
+	 * applying transactions. A snapshot is built at most once per version. */
+	public static class Snapshot {
+		public final long version;
+		private final Map<String, Person> people;
+		private final List<Transaction> history;
+		private final PersonIds personIds;
+		private Snapshot (long version, Map<String, Person> people, List<Transaction> history, PersonIds personIds)
+		{
+			this.version = version;
+			this.people = people;
+			this.history = history;
+			this.personIds = personIds;
+		}
+
+		public int historySize ()
+		{
+			return history.size();
+		}
+
+		/* sortBy=1: by name
+		 * sortBy=2: by balance ascending
+		 * sortBy=3: frequent eaters goes first */
+		public Iterable<Person> listPeople (int sortBy)
+		{
+			if (sortBy == 1) {
+				return people.values();
+			} else if (sortBy == 2) {
+				ArrayList<Person> list = new ArrayList<Person>(people.values());
+				Collections.sort(list, new Comparator<Person>() {
+						public int compare (Person p1, Person p2) {
+							return p1.balance - p2.balance;
+						}
+				});
+				return list;
+			} else if (sortBy == 3) {
+				final HashMap<String, Double> freqs = new HashMap<String, Double>();
+				for (String p : people.keySet()) freqs.put(p, 0.0);
+				double score = 1.0;
+				// Once score underflows to zero older lunches add nothing.
+				for (int i = history.size() - 1; i >= 0 && score > 0; i --) {
+					String [] eaters = history.get(i).lunchEaters();
+					if (eaters == null)
+						continue;
+					for (String p : eaters)
 						freqs.put(p, freqs.get(p) + score);
 					score *= 0.9;
 				}
+				ArrayList<Person> list = new ArrayList<Person>(people.values());
+				Collections.sort(list, new Comparator<Person>() {
+						public int compare (Person p1, Person p2) {
+							return -freqs.get(p1.name).compareTo(freqs.get(p2.name));
+						}
+				});
+				return list;
+			}
+			assert false;
+			return null;
+		}
+
+		public String[] listPeopleNames ()
+		{
+			return people.keySet().toArray(new String[people.size()]);
+		}
+
+		/* newest limit transactions of the global history */
+		public String showRecentHistory (int limit)
+		{
+			StringBuilder sb = new StringBuilder();
+			int end = Math.max(0, history.size() - limit);
+			for (int i = history.size() - 1; i >= end; i --)
+				sb.append(history.get(i).description() + "\n");
+			if (end > 0)
+				sb.append("(" + end + " older transactions not shown)\n");
+			return sb.toString();
+		}
+
+		/* global history */
+		public String showHistory (boolean reverse)
+		{
+			StringBuilder sb = new StringBuilder();
+			if (reverse)
+				for (int i = history.size() - 1; i >= 0; i --)
+					sb.append(history.get(i).description() + "\n");
+			else
+				for (Transaction trans : history)
+					sb.append(trans.description() + "\n");
+			return sb.toString();
+		}
+
+		/* personal history */
+		public String showHistory (boolean reverse, String name)
+		{
+			long [] bits = personIds.bitmap(Collections.singleton(name), false);
+			List<Transaction> hits = new ArrayList<Transaction>();
+			List<Integer> balances = new ArrayList<Integer>();
+			int balance = 0;
+			for (Transaction trans : history) {
+				if (!intersects(trans.participants(personIds), bits))
+					continue;
+				balance += trans.effectToPerson(name);
+				hits.add(trans);
+				balances.add(balance);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < hits.size(); j ++) {
+				int i = reverse ? hits.size() - 1 - j : j;
+				if (reverse)
+					sb.append("Balance: " + balances.get(i) / 100.0 + "\n");
+				sb.append(hits.get(i).description() + "\n");
+				if (!reverse)
+					sb.append("Balance: " + balances.get(i) / 100.0 + "\n");
+			}
+			return sb.toString();
+		}
+
+		/* selected group history */
+		public String showHistory (boolean reverse, Set<String> selected)
+		{
+			long [] bits = personIds.bitmap(selected, false);
+			List<Transaction> hits = new ArrayList<Transaction>();
+			for (Transaction trans : history)
+				if (intersects(trans.participants(personIds), bits))
+					hits.add(trans);
+			if (reverse)
+				Collections.reverse(hits);
+			StringBuilder balance = new StringBuilder("Balance:\n");
+			for (String person : selected) {
+				Person p = people.get(person);
+				balance.append(p.name).append(": ").append(p.balance / 100.0).append("\n");
 			}
-			ArrayList<Person> list = new ArrayList<Person>(people.values());
-			Collections.sort(list, new Comparator<Person>() {
-					public int compare (Person p1, Person p2) {
-						return -freqs.get(p1.name).compareTo(freqs.get(p2.name));
+			StringBuilder sb = new StringBuilder();
+			if (reverse)
+				sb.append(balance);
+			for (Transaction trans : hits)
+				sb.append(trans.description() + "\n");
+			if (!reverse)
+				sb.append(balance);
+			return sb.toString();
+		}
+
+		public Person getPerson (String name)
+		{
+			return people.get(name);
+		}
+
+		public void save (Writer out) throws IOException
+		{
+			long start = Stats.start();
+			long chars = write(out);
+			Stats.recordTime("save", start);
+			Stats.record("save.chars", chars);
+		}
+
+		/* save() without the stats, for callers that time themselves. */
+		private long write (Writer out) throws IOException
+		{
+			long chars = 0;
+			PrintWriter writer = new PrintWriter(out);
+			for (Transaction trans : history) {
+				String line = trans.save();
+				chars += line.length() + 1;
+				writer.println(line);
+			}
+			boolean error = writer.checkError();
+			writer.close();
+			if (error)
+				throw new IOException("PersistentState.save: write error");
+			return chars;
+		}
+
+		/* Writes to file.tmp, syncs it to disk and renames it over file, so a
+		 * crash leaves either the old or the new ledger, never a truncated one. */
+		public void saveAtomic (File file) throws IOException
+		{
+			File tmp = new File(file.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+				save(new FilterWriter(writer) {
+						public void close () throws IOException {flush();}
+				});
+				long start = Stats.start();
+				fos.getFD().sync();
+				Stats.recordTime("save.fsync", start);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("cannot rename " + tmp + " to " + file);
+			}
+		}
+
+		/* CRC32 of the first positions[i] transactions as exportTo() would
+		 * compute it, for ascending positions, in a single pass. */
+		public long [] prefixHashes (int [] positions) throws IOException
+		{
+			long [] hashes = new long [positions.length];
+			CRC32 crc = new CRC32();
+			int done = 0;
+			for (int i = 0; i < positions.length; i ++) {
+				if (positions[i] < done || positions[i] > history.size())
+					throw new IllegalArgumentException("position " + positions[i] + " of " + history.size());
+				while (done < positions[i])
+					crc.update((history.get(done ++).save() + "\n").getBytes("UTF-8"));
+				hashes[i] = crc.getValue();
+			}
+			return hashes;
+		}
+
+		/* Same framing as export(), always gzipped, without Base64. The
+		 * log is walked twice, once for the CRC and once for the data, so
+		 * no copy of it is built in memory. */
+		public void exportTo (int numExp, OutputStream out) throws IOException
+		{
+			if (numExp <= 0 || numExp > history.size())
+				throw new RuntimeException("numExp=" + numExp + ", history=" + history.size());
+			int numUnexp = history.size() - numExp;
+			if (numUnexp >= 65536)
+				throw new RuntimeException("numUnexp=" + numUnexp + " does not fit the header");
+
+			long start = Stats.start();
+			CRC32 crc = new CRC32();
+			for (Transaction trans : history)
+				crc.update((trans.save() + "\n").getBytes("UTF-8"));
+
+			out.write('L');
+			out.write('z');
+			GZIPOutputStream zos = new GZIPOutputStream(out, 8192);
+			DataOutputStream header = new DataOutputStream(zos);
+			header.writeShort(numUnexp);
+			header.writeInt((int)crc.getValue());
+			header.flush();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(zos, "UTF-8"));
+			for (int i = numUnexp; i < history.size(); i ++) {
+				writer.write(history.get(i).save());
+				writer.write("\n");
+			}
+			writer.flush();
+			zos.finish();
+			Stats.recordTime("export.stream", start);
+		}
+
+		public String export (int numExp)
+		{
+			if (numExp <= 0 || numExp > history.size())
+				throw new RuntimeException("numExp=" + numExp + ", history=" + history.size());
+			int numUnexp = history.size() - numExp;
+
+			long start = Stats.start();
+			try {
+				StringWriter writer = new StringWriter();
+				write(writer);
+				byte [] trans = writer.toString().getBytes("UTF-8");
+				CRC32 crcobj = new CRC32();
+				crcobj.update(trans);
+				long crc = crcobj.getValue();
+
+				int ptr = 0, count = 0;
+				while (count < numUnexp) {
+					if (trans[ptr] == '\n') {
+						count ++;
 					}
-			});
-			return list;
+					ptr ++;
+				}
+				// now, ptr points to the first byte to export.
+				assert ptr < trans.length;
+				byte [] data = new byte [2 + 2 + 4 + (trans.length - ptr)];
+				data[0] = 'L';
+				data[1] = '0';
+				assert numUnexp < 65536;
+				data[2] = (byte)(numUnexp >> 8);
+				data[3] = (byte)(numUnexp);
+				data[4] = (byte)(crc >> 24);
+				data[5] = (byte)(crc >> 16);
+				data[6] = (byte)(crc >> 8);
+				data[7] = (byte)(crc);
+				System.arraycopy(trans, ptr, data, 8, trans.length - ptr);
+
+				// Should we compress?
+				try {
+					ByteArrayOutputStream zdata = new ByteArrayOutputStream();
+					zdata.write('L');
+					zdata.write('z');
+					GZIPOutputStream zos = new GZIPOutputStream(zdata);
+					zos.write(data, 2, data.length - 2);
+					zos.close();
+					if (zdata.size() < data.length)
+						data = zdata.toByteArray();
+				} catch (IOException x) {
+					throw new RuntimeException(x);
+				}
+				String encoded = Base64.encodeToString(data, Base64.DEFAULT);
+				Stats.recordTime("export", start);
+				Stats.record("export.bytes", encoded.length());
+				return encoded;
+			} catch (Exception x) {
+				throw new RuntimeException(x);
+			}
 		}
-		assert false;
-		return null;
+	}
+
+	public synchronized Snapshot snapshot ()
+	{
+		if (snapshot == null || snapshot.version != version) {
+			snapshot = new Snapshot(version, people, history.view(), personIds);
+		}
+		return snapshot;
+	}
+
+	/* sortBy=1: by name
+	 * sortBy=2: by balance ascending
+	 * sortBy=3: frequent eaters goes first */
+	public Iterable<Person> listPeople (int sortBy)
+	{
+		return snapshot().listPeople(sortBy);
 	}
 
 	public String[] listPeopleNames ()
 	{
-		return people.keySet().toArray(new String[people.size()]);
+		return snapshot().listPeopleNames();
 	}
 
 	/* global history */
 	public String showHistory (boolean reverse)
 	{
-		StringBuilder sb = new StringBuilder();
-		if (reverse)
-			for (int i = history.size() - 1; i >= 0; i --)
-				sb.append(history.get(i).description() + "\n");
-		else
-			for (Transaction trans : history)
-				sb.append(trans.description() + "\n");
-		return sb.toString();
+		return snapshot().showHistory(reverse);
 	}
 
 	/* personal history */
 	public String showHistory (boolean reverse, String name)
+	{
+		return snapshot().showHistory(reverse, name);
+	}
+
+	public String showRecentHistory (int limit)
+	{
+		return snapshot().showRecentHistory(limit);
+	}
+
+	/* selected group history */
+	public String showHistory (boolean reverse, Set<String> selected)
+	{
+		return snapshot().showHistory(reverse, selected);
+	}
+
+	public synchronized Person getPerson (String name)
+	{
+		return people.get(name);
+	}
+
+	private void addBalance (String name, int delta)
+	{
+		Person p = people.get(name);
+		putPerson(new Person(p.name, p.email, p.balance + delta));
+	}
+
+	private void putPerson (Person p)
+	{
+		people = people.with(p.name, p);
+	}
+
+	private void removePerson (String name)
+	{
+		people = people.without(name);
+	}
+
+	private static final int ROLLUP_SPENT = 0; // share of lunches eaten
+	private static final int ROLLUP_PAID = 1;  // lunches paid for others and self
+	private static final int ROLLUP_IN = 2;    // transfers received
+	private static final int ROLLUP_OUT = 3;   // transfers given
+
+	private void addRollup (long date, String name, int field, long delta)
+	{
+		calendar.setTimeInMillis(date);
+		int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+		TreeMap<String, long[]> byPerson = rollups.get(month);
+		if (byPerson == null || !ownedMonths.contains(month)) {
+			TreeMap<String, long[]> copy = new TreeMap<String, long[]>();
+			if (byPerson != null)
+				for (Map.Entry<String, long[]> person : byPerson.entrySet())
+					copy.put(person.getKey(), person.getValue().clone());
+			byPerson = copy;
+			rollups.put(month, byPerson);
+			ownedMonths.add(month);
+		}
+		long [] totals = byPerson.get(name);
+		if (totals == null) {
+			totals = new long [4];
+			byPerson.put(name, totals);
+		}
+		totals[field] += delta;
+		if (totals[0] == 0 && totals[1] == 0 && totals[2] == 0 && totals[3] == 0) {
+			byPerson.remove(name);
+			if (byPerson.isEmpty())
+				rollups.remove(month);
+		}
+	}
+
+	public static class MonthlyRollup {
+		public final int month; // yyyymm
+		public final String name;
+		public final long spent;
+		public final long paid;
+		public final long transferIn;
+		public final long transferOut;
+		private MonthlyRollup (int month, String name, long [] totals) {
+			this.month = month;
+			this.name = name;
+			spent = totals[ROLLUP_SPENT];
+			paid = totals[ROLLUP_PAID];
+			transferIn = totals[ROLLUP_IN];
+			transferOut = totals[ROLLUP_OUT];
+		}
+		/* Change of balance in this month. */
+		public long net () {return paid - spent + transferOut - transferIn;}
+	}
+
+	/* Newest month first, people by name within a month. Costs
+	 * O(people * months), independent of the length of history. */
+	public synchronized List<MonthlyRollup> monthlyRollups ()
+	{
+		List<MonthlyRollup> list = new ArrayList<MonthlyRollup>();
+		for (Map.Entry<Integer, TreeMap<String, long[]>> month : rollups.descendingMap().entrySet())
+			for (Map.Entry<String, long[]> person : month.getValue().entrySet())
+				list.add(new MonthlyRollup(month.getKey(), person.getKey(), person.getValue()));
+		return list;
+	}
+
+	public String monthlyReport ()
 	{
 		StringBuilder sb = new StringBuilder();
-		int balance = 0;
-		for (Transaction trans : history) {
-			int delta = trans.effectToPerson(name);
-			if (delta == 0)
-				continue;
-			balance += delta;
-			if (reverse) {
-				sb.insert(0, trans.description() + "\n");
-				sb.insert(0, "Balance: " + balance / 100.0 + "\n");
-			} else {
-				sb.append(trans.description() + "\n");
-				sb.append("Balance: " + balance / 100.0 + "\n");
+		int month = 0;
+		for (MonthlyRollup r : monthlyRollups()) {
+			if (r.month != month) {
+				month = r.month;
+				sb.append(month / 100).append("-").append(month % 100 < 10 ? "0" : "").append(month % 100).append("\n");
 			}
+			sb.append("  ").append(r.name).
+				append(": spent $").append(r.spent / 100.0).
+				append(", paid $").append(r.paid / 100.0);
+			if (r.transferOut != 0)
+				sb.append(", gave $").append(r.transferOut / 100.0);
+			if (r.transferIn != 0)
+				sb.append(", received $").append(r.transferIn / 100.0);
+			sb.append(", net $").append(r.net() / 100.0).append("\n");
 		}
 		return sb.toString();
 	}
 
-	/* selected group history */
-	public String showHistory (boolean reverse, Set<String> selected)
+	private static final String [] MONTHS = {"january", "february", "march", "april",
+		"may", "june", "july", "august", "september", "october", "november", "december"};
+
+	/* Transaction.searchText() plus the year and month name of the date. */
+	private Set<String> tokens (Transaction trans)
 	{
-		StringBuilder sb = new StringBuilder();
-		for (Transaction trans : history) {
-			boolean hit = false;
-			for (String person : selected)
-				if (trans.effectToPerson(person) != 0) {
-					hit = true;
-					break;
+		Set<String> tokens = SearchIndex.tokenize(trans.searchText());
+		calendar.setTimeInMillis(trans.date);
+		tokens.add(Integer.toString(calendar.get(Calendar.YEAR)));
+		tokens.add(MONTHS[calendar.get(Calendar.MONTH)]);
+		return tokens;
+	}
+
+	private SearchIndex index ()
+	{
+		if (index == null) {
+			long start = Stats.start();
+			index = new SearchIndex();
+			for (int i = 0; i < history.size(); i ++)
+				index.add(i, tokens(history.get(i)));
+			indexModified = true;
+			Stats.recordTime("index.build", start);
+		}
+		return index;
+	}
+
+	/* Descriptions of the transactions matching every word of query, newest
+	 * first, at most limit of them. Words match by prefix, so "noo mar"
+	 * finds a lunch at the noodle place in March. */
+	public synchronized List<String> search (String query, int limit)
+	{
+		long start = Stats.start();
+		int [] positions = index().query(query);
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < positions.length && i < limit; i ++)
+			result.add(history.get(positions[i]).description());
+		Stats.recordTime("search", start);
+		return result;
+	}
+
+	/* The header ties the index file to a history; a file that does not
+	 * match is ignored and the index is rebuilt on the next search. */
+	private String indexHeader ()
+	{
+		return "LFIDX2\t" + history.size() + "\t" + (history.size() == 0 ? 0 : history.peek().save().hashCode());
+	}
+
+	/* Writes the index if it changed since the last write. The lock is
+	 * only held to copy the postings; the file is written from the copy. */
+	public void saveIndex (File file) throws IOException
+	{
+		SearchIndex copy;
+		String header;
+		synchronized (this) {
+			if (index == null || !indexModified)
+				return;
+			copy = index.copy();
+			header = indexHeader();
+			indexModified = false;
+		}
+		boolean saved = false;
+		try {
+			long start = Stats.start();
+			File tmp = new File(file.getPath() + ".tmp");
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			try {
+				writer.write(header + "\n");
+				copy.save(writer);
+			} finally {
+				writer.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("cannot rename " + tmp + " to " + file);
+			}
+			Stats.recordTime("index.save", start);
+			saved = true;
+		} finally {
+			if (!saved)
+				synchronized (this) {
+					indexModified = true;
 				}
-			if (hit == false)
-				continue;
-			if (reverse) {
-				sb.insert(0, trans.description() + "\n");
-			} else {
-				sb.append(trans.description() + "\n");
+		}
+	}
+
+	/* Parses the file without the lock, and keeps the result only if it
+	 * still matches the history and no index was built meanwhile. */
+	public void loadIndex (File file)
+	{
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String header;
+			SearchIndex loaded;
+			try {
+				header = reader.readLine();
+				synchronized (this) {
+					if (index != null || !indexHeader().equals(header))
+						return;
+				}
+				loaded = SearchIndex.load(reader);
+			} finally {
+				reader.close();
 			}
+			synchronized (this) {
+				if (index == null && indexHeader().equals(header)) {
+					index = loaded;
+					indexModified = false;
+				}
+			}
+		} catch (Exception x) {
+			Log.e("PersistentState", "loadIndex", x);
 		}
-		StringBuilder balance = new StringBuilder("Balance:\n");
-		for (String person : selected) {
-			Person p = people.get(person);
-			balance.append(p.name).append(": ").append(p.balance / 100.0).append("\n");
+	}
+
+	/* A new state with the first size transactions of this one. History,
+	 * people and the rollup months are shared, and undoing the
+	 * transactions after size only copies what they touch. The fork has
+	 * no undo history. */
+	private synchronized PersistentState fork (int size)
+	{
+		PersistentState ps = new PersistentState();
+		ps.people = people;
+		ps.history = history.fork(size);
+		ps.personIds = personIds;
+		// Both states now share every month; whichever changes one first
+		// copies it.
+		ps.rollups = new TreeMap<Integer, TreeMap<String, long[]>>(rollups);
+		ownedMonths.clear();
+		for (int i = history.size() - 1; i >= size; i --)
+			history.get(i).undo(ps);
+		for (int [] batch : batches)
+			if (batch[1] <= size)
+				ps.batches.push(batch);
+		ps.modified = true;
+		return ps;
+	}
+
+	/* All changes of history go through push and pop, which keep the
+	 * search index, if built, in step. */
+	private void push (Transaction trans)
+	{
+		trans.apply(this);
+		trans.bindParticipants(personIds);
+		history.push(trans);
+		if (index != null) {
+			index.add(history.size() - 1, tokens(trans));
+			indexModified = true;
 		}
-		if (reverse) {
-			sb.insert(0, balance);
-		} else {
-			sb.append(balance);
+	}
+
+	private Transaction pop ()
+	{
+		Transaction trans = history.pop();
+		trans.undo(this);
+		if (index != null) {
+			index.remove(history.size(), tokens(trans));
+			indexModified = true;
 		}
-		return sb.toString();
+		return trans;
 	}
 
-	public Person getPerson (String name)
+	private synchronized void apply (Transaction trans)
 	{
-		return people.get(name);
+		undoHistory.clear();
+		undoUnits.clear();
+		push(trans);
+		modified = true;
+		version ++;
 	}
 
-	private void apply (Transaction trans)
+	/* Applies all or nothing. The batch becomes a single undo unit. */
+	private synchronized void applyBatch (List<Transaction> batch)
 	{
+		int start = history.size();
+		int applied = 0;
+		try {
+			for (Transaction trans : batch) {
+				push(trans);
+				applied ++;
+			}
+		} catch (RuntimeException x) {
+			while (applied -- > 0)
+				pop();
+			throw x;
+		}
 		undoHistory.clear();
-		trans.apply(this);
-		history.push(trans);
+		undoUnits.clear();
+		batches.push(new int [] {start, history.size()});
 		modified = true;
+		version ++;
 	}
 
 	public void undo ()
 	{
-		if (history.size() == 0)
-			throw new RuntimeException("PersistentState.undo while history is empty");
-		Transaction trans = history.pop();
-		trans.undo(this);
-		undoHistory.push(trans);
+		undo(1);
+	}
+
+	/* Undoes the last steps undo units. Readers see a single change. */
+	public synchronized void undo (int steps)
+	{
+		if (steps > undoableSteps())
+			throw new RuntimeException("PersistentState.undo(" + steps + ") while history is too short");
+		for (int s = 0; s < steps; s ++) {
+			int count = 1;
+			if (!batches.empty() && batches.peek()[1] == history.size())
+				count = history.size() - batches.pop()[0];
+			for (int i = 0; i < count; i ++)
+				undoHistory.push(pop());
+			undoUnits.push(count);
+		}
 		modified = true;
+		version ++;
 	}
 
-	public void redo ()
+	/* Number of undo units in history. */
+	public synchronized int undoableSteps ()
+	{
+		int steps = history.size();
+		for (int [] batch : batches)
+			steps -= batch[1] - batch[0] - 1;
+		return steps;
+	}
+
+	public synchronized void redo ()
 	{
 		if (undoHistory.size() == 0)
 			throw new RuntimeException("PersistentState.redo while undoHistory is empty");
-		Transaction trans = undoHistory.pop();
-		trans.apply(this);
-		history.push(trans);
+		int count = undoUnits.pop();
+		int start = history.size();
+		for (int i = 0; i < count; i ++)
+			push(undoHistory.pop());
+		if (count > 1)
+			batches.push(new int [] {start, history.size()});
 		modified = true;
+		version ++;
 	}
 
 	public void performLunch (String payer, int amount, String remarks, String [] eaters)
@@ -457,13 +1439,24 @@ public class PersistentState
 		apply(new TransferTransaction(0, from, to, amount, remarks));
 	}
 
+	/* Applies the plan as one undo unit. Dates are spaced one millisecond
+	 * apart, since merge requires strictly increasing dates. */
+	public synchronized void performSettle (List<SettlePlanner.Transfer> plan)
+	{
+		long date = Math.max(System.currentTimeMillis(), history.size() == 0 ? 0 : history.peek().date + 1);
+		List<Transaction> batch = new ArrayList<Transaction>();
+		for (SettlePlanner.Transfer t : plan)
+			batch.add(new TransferTransaction(date ++, t.from, t.to, t.amount, "settle up"));
+		applyBatch(batch);
+	}
+
 	// how to handle conflict? not crach
 	public void performAddPerson (String name, String email)
 	{
 		apply(new AddTransaction(0, name, email));
 	}
 
-	public void performChangeEmail (String name, String newEmail)
+	public synchronized void performChangeEmail (String name, String newEmail)
 	{
 		if (!people.containsKey(name))
 			throw new RuntimeException("PersistentState.name person not found");
@@ -471,62 +1464,220 @@ public class PersistentState
 		apply(trans);
 	}
 
-	/* export and merge format
-	   header: 'L0', number of unexported trans, CRC32 of whole log, exported trans.
-	   header: 'Lz', same as above, but gzipped
+	/* CSV import format, one transaction per row, amounts in dollars:
+	   lunch,date,payer,amount,remarks,eater,eater,...
+	   transfer,date,from,to,amount,remarks
+	   add,date,name,email
+	   date is yyyy-MM-dd, yyyy-MM-dd HH:mm, milliseconds since 1970, or empty
+	   for now. Rows must be in date order and after the existing history.
+	   A header row starting with "type" and lines starting with '#' are skipped.
 	 */
-	public String export (int numExp)
+	public static class ImportResult {
+		private final List<Transaction> batch;
+		public final int count;
+		public final String message;
+		private ImportResult (List<Transaction> b, String m) {batch = b; count = b == null ? 0 : b.size(); message = m;}
+	}
+	/* Reads all of in, which the caller closes, before taking the lock;
+	 * only checking the rows against people and history holds it. */
+	public ImportResult parseCsv (Reader in)
 	{
-		if (numExp <= 0 || numExp > history.size())
-			throw new RuntimeException("numExp=" + numExp + ", history=" + history.size());
-		int numUnexp = history.size() - numExp;
-
+		// Each row's fields, or the error splitting it, with its line number.
+		List<Object> rows = new ArrayList<Object>();
+		List<Integer> linenos = new ArrayList<Integer>();
+		BufferedReader reader = new BufferedReader(in);
+		int lineno = 0;
 		try {
-			StringWriter writer = new StringWriter();
-			save(writer);
-			byte [] trans = writer.toString().getBytes("UTF-8");
-			CRC32 crcobj = new CRC32();
-			crcobj.update(trans);
-			long crc = crcobj.getValue();
-
-			int ptr = 0, count = 0;
-			while (count < numUnexp) {
-				if (trans[ptr] == '\n') {
-					count ++;
+			while (true) {
+				String line = reader.readLine();
+				if (line == null)
+					break;
+				lineno ++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				try {
+					String [] arr = splitCsv(line);
+					if (lineno == 1 && arr[0].equalsIgnoreCase("type"))
+						continue;
+					rows.add(arr);
+				} catch (RuntimeException x) {
+					rows.add(x.getMessage());
 				}
-				ptr ++;
+				linenos.add(lineno);
 			}
-			// now, ptr points to the first byte to export.
-			assert ptr < trans.length;
-			byte [] data = new byte [2 + 2 + 4 + (trans.length - ptr)];
-			data[0] = 'L';
-			data[1] = '0';
-			assert numUnexp < 65536;
-			data[2] = (byte)(numUnexp >> 8);
-			data[3] = (byte)(numUnexp);
-			data[4] = (byte)(crc >> 24);
-			data[5] = (byte)(crc >> 16);
-			data[6] = (byte)(crc >> 8);
-			data[7] = (byte)(crc);
-			System.arraycopy(trans, ptr, data, 8, trans.length - ptr);
-
-			// Should we compress?
+		} catch (IOException x) {
+			return new ImportResult(null, "Read error: " + x);
+		}
+
+		List<Transaction> batch = new ArrayList<Transaction>();
+		StringBuilder errors = new StringBuilder();
+		synchronized (this) {
+			Set<String> names = new HashSet<String>(people.keySet());
+			long lastDate = history.size() == 0 ? 0 : history.peek().date;
+			for (int i = 0; i < rows.size(); i ++) {
+				String error;
+				if (rows.get(i) instanceof String) {
+					error = (String)rows.get(i);
+				} else {
+					try {
+						Transaction trans = parseCsvRow((String [])rows.get(i), names, lastDate);
+						lastDate = trans.date;
+						batch.add(trans);
+						continue;
+					} catch (RuntimeException x) {
+						error = x.getMessage();
+					}
+				}
+				errors.append("line ").append(linenos.get(i)).append(": ").append(error).append("\n");
+			}
+		}
+		if (errors.length() > 0)
+			return new ImportResult(null, errors.toString());
+		if (batch.size() == 0)
+			return new ImportResult(null, "Nothing to import");
+		return new ImportResult(batch, "Import " + batch.size() + " transactions?");
+	}
+
+	public synchronized void performImport (ImportResult result)
+	{
+		if (result.batch == null)
+			throw new RuntimeException("PersistentState.performImport with failed ImportResult");
+		applyBatch(result.batch);
+	}
+
+	private static Transaction parseCsvRow (String [] arr, Set<String> names, long lastDate)
+	{
+		for (String field : arr)
+			if (field.indexOf('\t') >= 0)
+				throw new IllegalArgumentException("tab not allowed");
+		String type = arr[0].toLowerCase(Locale.US);
+		int minFields = type.equals("lunch") ? 6 : type.equals("transfer") ? 5 : type.equals("add") ? 3 : -1;
+		if (minFields < 0)
+			throw new IllegalArgumentException("unknown type " + arr[0]);
+		if (arr.length < minFields)
+			throw new IllegalArgumentException("too few fields");
+		long date = parseCsvDate(arr[1], lastDate);
+		if (type.equals("add")) {
+			if (arr[2].length() == 0 || !names.add(arr[2]))
+				throw new IllegalArgumentException("bad or existing name " + arr[2]);
+			return new AddTransaction(date, arr[2], arr.length < 4 ? "" : arr[3]);
+		} else if (type.equals("transfer")) {
+			checkCsvName(arr[2], names);
+			checkCsvName(arr[3], names);
+			if (arr[2].equals(arr[3]))
+				throw new IllegalArgumentException("transfer to self");
+			return new TransferTransaction(date, arr[2], arr[3], parseCsvAmount(arr[4]),
+					arr.length < 6 ? "" : arr[5]);
+		} else {
+			checkCsvName(arr[2], names);
+			Set<String> seen = new HashSet<String>();
+			List<String> eaters = new ArrayList<String>();
+			for (int i = 5; i < arr.length; i ++) {
+				if (arr[i].length() == 0)
+					continue;
+				checkCsvName(arr[i], names);
+				if (!seen.add(arr[i]))
+					throw new IllegalArgumentException("duplicate eater " + arr[i]);
+				eaters.add(arr[i]);
+			}
+			if (eaters.size() == 0)
+				throw new IllegalArgumentException("no eaters");
+			return new LunchTransaction(date, arr[2], parseCsvAmount(arr[3]), arr[4],
+					eaters.toArray(new String[eaters.size()]));
+		}
+	}
+
+	private static void checkCsvName (String name, Set<String> names)
+	{
+		if (!names.contains(name))
+			throw new IllegalArgumentException("unknown person " + name);
+	}
+
+	private static int parseCsvAmount (String s)
+	{
+		double d;
+		try {
+			d = Double.parseDouble(s.replace("$", ""));
+		} catch (NumberFormatException x) {
+			throw new IllegalArgumentException("bad amount " + s);
+		}
+		if (Math.abs(d) * 100 >= Integer.MAX_VALUE || (int)Math.round(d * 100) <= 0)
+			throw new IllegalArgumentException("amount must be positive");
+		return (int)Math.round(d * 100);
+	}
+
+	/* Dates must strictly increase. Rows that only give a day are spaced
+	 * one millisecond apart when several fall on the same day. */
+	private static long parseCsvDate (String s, long lastDate)
+	{
+		long date;
+		boolean dayOnly = false;
+		if (s.length() == 0) {
+			date = System.currentTimeMillis();
+			dayOnly = true;
+		} else if (s.matches("\\d{9,}")) {
+			date = Long.parseLong(s);
+		} else {
+			String pattern = s.length() > 10 ? "yyyy-MM-dd HH:mm" : "yyyy-MM-dd";
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+			format.setLenient(false);
 			try {
-				ByteArrayOutputStream zdata = new ByteArrayOutputStream();
-				zdata.write('L');
-				zdata.write('z');
-				GZIPOutputStream zos = new GZIPOutputStream(zdata);
-				zos.write(data, 2, data.length - 2);
-				zos.close();
-				if (zdata.size() < data.length)
-					data = zdata.toByteArray();
-			} catch (IOException x) {
-				throw new RuntimeException(x);
+				date = format.parse(s).getTime();
+			} catch (ParseException x) {
+				throw new IllegalArgumentException("bad date " + s);
 			}
-			return Base64.encodeToString(data, Base64.DEFAULT);
-		} catch (Exception x) {
-			throw new RuntimeException(x);
+			dayOnly = s.length() <= 10;
 		}
+		if (date > lastDate)
+			return date;
+		if (dayOnly && lastDate - date < 24 * 3600 * 1000L)
+			return lastDate + 1;
+		throw new IllegalArgumentException("date " + s + " goes backwards");
+	}
+
+	/* Comma separated, fields may be quoted with "" as an escaped quote. */
+	private static String [] splitCsv (String line)
+	{
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i ++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"')
+					field.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+					field.append(line.charAt(++ i));
+				else
+					quoted = false;
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted)
+			throw new IllegalArgumentException("unterminated quote");
+		fields.add(field.toString().trim());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/* export and merge format
+	   header: 'L0', number of unexported trans, CRC32 of whole log, exported trans.
+	   header: 'Lz', same as above, but gzipped
+	 */
+	public String export (int numExp)
+	{
+		return snapshot().export(numExp);
+	}
+
+	public void exportTo (int numExp, OutputStream out) throws IOException
+	{
+		snapshot().exportTo(numExp, out);
 	}
 
 	public static class MergeResult {
@@ -542,95 +1693,211 @@ public class PersistentState
 		} catch (Exception x) {
 			return new MergeResult(null, "Invalid Data Format " + x);
 		}
-		if (bytes[0] == 'L' && bytes[1] == '0')
-			;
-		else if (bytes[0] == 'L' && bytes[1] == 'z') {
+		Stats.record("merge.bytes", foreign.length());
+		return merge(new ByteArrayInputStream(bytes));
+	}
+
+	/* Merges an export read from in, raw or Base64 encoded. Only the
+	 * foreign transactions are kept in memory. */
+	public MergeResult merge (InputStream in)
+	{
+		return mergeAll(Collections.singletonList(in));
+	}
+
+	/* Merges several exports at once. Each is checked against our prefix
+	 * on its own, then our history and all of them are merged by date and
+	 * replayed once, giving a single result to confirm. The exports are
+	 * read and merged against a snapshot without holding the lock, which
+	 * is only taken to fork the result. */
+	public MergeResult mergeAll (List<InputStream> ins)
+	{
+		long start = Stats.start();
+		Snapshot snap = snapshot();
+		MergeResult result = null;
+		List<Foreign> foreign = new ArrayList<Foreign>();
+		for (int i = 0; i < ins.size() && result == null; i ++) {
+			Foreign f;
 			try {
-				ByteArrayInputStream zdata = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
-				GZIPInputStream zis = new GZIPInputStream(zdata);
-				ByteArrayOutputStream pdata = new ByteArrayOutputStream();
-				pdata.write('L');
-				pdata.write('0');
-				while (true) {
-					int b = zis.read();
-					if (b == -1) break;
-					pdata.write(b);
-				}
-				bytes = pdata.toByteArray();
+				f = readForeign(snap.history, ins.get(i));
 			} catch (IOException x) {
-				throw new RuntimeException(x);
+				f = new Foreign("Invalid Data Format " + x);
 			}
-		} else {
-			return new MergeResult(null, "Invalid Data Format");
+			if (f.error != null)
+				result = new MergeResult(null, ins.size() == 1 ? f.error : "Export " + (i + 1) + ": " + f.error);
+			foreign.add(f);
 		}
-		int numUnexp = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+		if (result == null)
+			result = mergeForeign(snap, foreign);
+		Stats.recordTime("merge", start);
+		Stats.record("merge.sources", ins.size());
+		if (result.newPS != null)
+			Stats.record("merge.transactions", result.newPS.history.size());
+		return result;
+	}
+
+	/* The transactions of one export after the prefix it shares with us. */
+	private static class Foreign {
+		final int numUnexp;
+		final List<Transaction> tail;
+		final String error;
+		Foreign (int numUnexp, List<Transaction> tail) {this.numUnexp = numUnexp; this.tail = tail; error = null;}
+		Foreign (String error) {numUnexp = 0; tail = null; this.error = error;}
+	}
+
+	private static Foreign readForeign (List<Transaction> history, InputStream in) throws IOException
+	{
+		in = new BufferedInputStream(in);
+		in.mark(2);
+		int magic0 = in.read(), magic1 = in.read();
+		if (magic0 != 'L' || (magic1 != '0' && magic1 != 'z')) {
+			// Not raw, maybe Base64 text as put on the clipboard.
+			in.reset();
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			byte [] buf = new byte [8192];
+			for (int n; (n = in.read(buf)) > 0; )
+				text.write(buf, 0, n);
+			byte [] bytes;
+			try {
+				bytes = Base64.decode(text.toString("US-ASCII"), Base64.DEFAULT);
+			} catch (Exception x) {
+				return new Foreign("Invalid Data Format " + x);
+			}
+			if (bytes.length < 2 || bytes[0] != 'L' || (bytes[1] != '0' && bytes[1] != 'z'))
+				return new Foreign("Invalid Data Format");
+			return readForeign(history, new ByteArrayInputStream(bytes));
+		}
+		if (magic1 == 'z')
+			in = new GZIPInputStream(in);
+		DataInputStream header = new DataInputStream(in);
+		int numUnexp = header.readUnsignedShort();
+		int crcExp = header.readInt();
 		if (numUnexp > history.size())
-			return new MergeResult(null, "Need to export more transactions to merge");
+			return new Foreign("Need to export more transactions to merge");
 
-		StringBuilder sb = new StringBuilder();
+		// The remote log shares the first numUnexp transactions with ours.
+		// The CRC covers that prefix followed by the bytes as they arrive.
+		CRC32 crc = new CRC32();
 		for (int i = 0; i < numUnexp; i ++)
-			sb.append(history.get(i).save()).append("\n");
-		try { sb.append(new String(bytes, 8, bytes.length - 8, "UTF-8")); } catch (UnsupportedEncodingException x) {}
+			crc.update((history.get(i).save() + "\n").getBytes("UTF-8"));
+		// Lines that equal ours at the same position extend the shared
+		// prefix and are dropped as they arrive, so a full export only
+		// keeps what follows the first difference.
+		int shared = numUnexp;
+		boolean diverged = false;
+		ArrayList<Transaction> tail = new ArrayList<Transaction>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new CheckedInputStream(in, crc), "UTF-8"));
+		Exception invalid = null;
+		while (true) {
+			String line = reader.readLine();
+			if (line == null)
+				break;
+			line = line.trim();
+			if (line.length() == 0 || invalid != null)
+				continue;
+			if (!diverged && shared < history.size() && line.equals(history.get(shared).save())) {
+				shared ++;
+				continue;
+			}
+			diverged = true;
+			try {
+				tail.add(loadTransaction(line));
+			} catch (Exception x) {
+				invalid = x;
+			}
+		}
+		if ((int)crc.getValue() != crcExp)
+			return new Foreign("Conflict or Corrupt data. Try again with more transactions");
+		if (invalid != null)
+			return new Foreign("Invalid Remote Log: " + invalid);
 
-		int crcExp = (bytes[4] << 24) | ((bytes[5] & 0xff) << 16) |
-			((bytes[6] & 0xff) << 8) | (bytes[7] & 0xff);
-		CRC32 crc = new CRC32();
-		try { crc.update(sb.toString().getBytes("UTF-8")); } catch (UnsupportedEncodingException x) {}
-		if ((int)crc.getValue() != crcExp) {
-			Log.e("PersistentState", sb.toString());
-			return new MergeResult(null, "Conflict or Corrupt data. Try again with more transactions");
+		// Ensure strict increasing date
+		long last = shared == 0 ? Long.MIN_VALUE : history.get(shared - 1).date;
+		for (Transaction t : tail) {
+			if (t.date <= last)
+				return new Foreign("remote date goes backwards");
+			last = t.date;
 		}
+		Stats.record("merge.shared", shared - numUnexp);
+		return new Foreign(shared, tail);
+	}
 
-		PersistentState ps2;
-		try {
-			ps2 = load(sb.toString());
-			sb = null;
-		} catch (Exception x) {
-			return new MergeResult(null, "Invalid Remote Log: " + x);
+	/* Position in one of the date ordered lists being merged. Source 0 is
+	 * our history and sorts first on equal dates. */
+	private static class Cursor implements Comparable<Cursor> {
+		final int source;
+		final List<Transaction> list;
+		int pos = 0;
+		Cursor (int source, List<Transaction> list) {this.source = source; this.list = list;}
+		public int compareTo (Cursor c) {
+			long d1 = list.get(pos).date, d2 = c.list.get(c.pos).date;
+			return d1 < d2 ? -1 : d1 > d2 ? 1 : source - c.source;
 		}
+	}
 
+	private MergeResult mergeForeign (Snapshot snap, List<Foreign> foreign)
+	{
+		List<Transaction> history = snap.history;
 		// Ensure strict increasing date
 		for (int i = 0; i < history.size() - 1; i ++)
 			if (history.get(i).date >= history.get(i+1).date)
 				return new MergeResult(null, "this date goes backwards");
-		for (int i = 0; i < ps2.history.size() - 1; i ++)
-			if (ps2.history.get(i).date >= ps2.history.get(i+1).date)
-				return new MergeResult(null, "remote date goes backwards");
-		// Ensure no duplicate date
-		TreeMap<Long, Transaction> map = new TreeMap<Long, Transaction>();
-		ArrayList<Transaction> tmplist = new ArrayList<Transaction>(history);
-		tmplist.addAll(ps2.history);
-		for (Transaction t : tmplist) {
-			Transaction exist = map.put(t.date, t);
-			if (exist != null && !exist.equals(t))
-				return new MergeResult(null, "date conflict");
-		}
-		tmplist = null;
+
+		// Everything before the shortest shared prefix is common to all.
+		int common = history.size();
+		for (Foreign f : foreign)
+			common = Math.min(common, f.numUnexp);
+
+		// k-way merge by date. An equal date must be an equal transaction,
+		// and our own object is kept since our history sorts first.
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(foreign.size() + 1);
+		if (common < history.size())
+			queue.add(new Cursor(0, history.subList(common, history.size())));
+		for (int i = 0; i < foreign.size(); i ++)
+			if (foreign.get(i).tail.size() > 0)
+				queue.add(new Cursor(i + 1, foreign.get(i).tail));
+		ArrayList<Transaction> merged = new ArrayList<Transaction>();
+		StringBuilder sb = new StringBuilder();
+		sb.append(foreign.size() == 1 ? "New Transactions:\n" : "New Transactions from " + foreign.size() + " exports:\n");
+		int added = 0;
+		Transaction last = null;
+		while (!queue.isEmpty()) {
+			Cursor c = queue.poll();
+			Transaction t = c.list.get(c.pos ++);
+			if (c.pos < c.list.size())
+				queue.add(c);
+			if (last != null && last.date == t.date) {
+				if (last != t && !last.equals(t))
+					return new MergeResult(null, foreign.size() == 1 ? "date conflict" : "date conflict in export " + c.source);
+				continue;
+			}
+			merged.add(t);
+			last = t;
+			if (c.source != 0) {
+				sb.append(t.description()).append("\n");
+				added ++;
+			}
+		}
 		// Any new trans?
-		if (map.size() == history.size())
+		if (added == 0)
 			return new MergeResult(null, "Nothing new");
 
+		// Share everything before the first difference, replay the rest.
+		int diverge = common;
+		while (diverge < history.size() && merged.get(diverge - common) == history.get(diverge))
+			diverge ++;
 		PersistentState ps3;
+		synchronized (this) {
+			if (version != snap.version)
+				return new MergeResult(null, "The log changed while merging. Try again");
+			ps3 = fork(diverge);
+		}
 		try {
-			sb = new StringBuilder();
-			for (Transaction t : map.values())
-				sb.append(t.save()).append("\n");
-			ps3 = load(sb.toString());
-			sb = null;
+			for (int i = diverge - common; i < merged.size(); i ++)
+				ps3.push(merged.get(i));
 		} catch (Exception x) {
 			return new MergeResult(null, "Invalid Merged Log: " + x);
 		}
-
-		// all done. generate merge message
-		sb = new StringBuilder();
-		sb.append("New Transactions:\n");
-		map.clear();
-		for (Transaction t : history) map.put(t.date, t);
-		for (Transaction t : ps3.history)
-			if (!map.containsKey(t.date))
-				sb.append(t.description()).append("\n");
-		assert sb.length() > 0;
-
+		Stats.record("merge.replayed", common + merged.size() - diverge);
 		return new MergeResult(ps3, sb.toString());
 	}
 }
@@ -0,0 +1,124 @@
+package com.wyz.lunchfund;
+
+import java.io.*;
+import java.util.*;
+
+/* Inverted index from lower case tokens to history positions. Positions
+ * are only ever added or removed at the end of history, so every posting
+ * list stays sorted and both updates are O(tokens). */
+class SearchIndex
+{
+	private static class Postings {
+		int [] pos = new int [4];
+		int size = 0;
+		void add (int p) {
+			if (size == pos.length)
+				pos = Arrays.copyOf(pos, size * 2);
+			pos[size ++] = p;
+		}
+	}
+
+	private final TreeMap<String, Postings> postings = new TreeMap<String, Postings>();
+
+	/* Words of letters and digits. A dot between two digits is kept, so
+	 * "$12.5" is the token "12.5". */
+	public static Set<String> tokenize (String text)
+	{
+		Set<String> tokens = new HashSet<String>();
+		for (String token : text.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}.]+|(?<!\\p{N})\\.|\\.(?!\\p{N})"))
+			if (token.length() > 0)
+				tokens.add(token);
+		return tokens;
+	}
+
+	public void add (int pos, Set<String> tokens)
+	{
+		for (String token : tokens) {
+			Postings p = postings.get(token);
+			if (p == null) {
+				p = new Postings();
+				postings.put(token, p);
+			}
+			if (p.size == 0 || p.pos[p.size - 1] < pos)
+				p.add(pos);
+		}
+	}
+
+	/* pos must be the last position added. */
+	public void remove (int pos, Set<String> tokens)
+	{
+		for (String token : tokens) {
+			Postings p = postings.get(token);
+			if (p == null || p.size == 0 || p.pos[p.size - 1] != pos)
+				continue;
+			if (-- p.size == 0)
+				postings.remove(token);
+		}
+	}
+
+	/* Positions matching every query token, newest first. A query token
+	 * matches any indexed token it is a prefix of. */
+	public int [] query (String query)
+	{
+		BitSet result = null;
+		for (String token : tokenize(query)) {
+			BitSet hits = new BitSet();
+			for (Postings p : postings.subMap(token, token + Character.MAX_VALUE).values())
+				for (int i = 0; i < p.size; i ++)
+					hits.set(p.pos[i]);
+			if (result == null)
+				result = hits;
+			else
+				result.and(hits);
+		}
+		if (result == null)
+			return new int [0];
+		int [] positions = new int [result.cardinality()];
+		int j = positions.length;
+		for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1))
+			positions[-- j] = i;
+		return positions;
+	}
+
+	/* A copy that later add() and remove() calls on this one leave alone. */
+	public SearchIndex copy ()
+	{
+		SearchIndex copy = new SearchIndex();
+		for (Map.Entry<String, Postings> e : postings.entrySet()) {
+			Postings p = new Postings();
+			p.pos = Arrays.copyOf(e.getValue().pos, e.getValue().size);
+			p.size = p.pos.length;
+			copy.postings.put(e.getKey(), p);
+		}
+		return copy;
+	}
+
+	/* One line per token: token, then its positions, tab separated. */
+	public void save (Writer out) throws IOException
+	{
+		for (Map.Entry<String, Postings> e : postings.entrySet()) {
+			Postings p = e.getValue();
+			out.write(e.getKey());
+			for (int i = 0; i < p.size; i ++)
+				out.write("\t" + p.pos[i]);
+			out.write("\n");
+		}
+	}
+
+	public static SearchIndex load (BufferedReader in) throws IOException
+	{
+		SearchIndex index = new SearchIndex();
+		while (true) {
+			String line = in.readLine();
+			if (line == null)
+				break;
+			String [] arr = line.split("\t");
+			Postings p = new Postings();
+			p.pos = new int [Math.max(4, arr.length - 1)];
+			for (int i = 1; i < arr.length; i ++)
+				p.add(Integer.parseInt(arr[i]));
+			index.postings.put(arr[0], p);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,120 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+
+/* Plans the transfers that bring every balance to zero. The greedy plan
+ * repeatedly settles the largest debtor against the largest creditor
+ * using two heaps, O(n log n), with at most n-1 transfers. The exact plan
+ * finds the fewest transfers by splitting people into the most zero-sum
+ * groups; it is exponential, so only used for small groups. */
+public class SettlePlanner
+{
+	public static final int EXACT_LIMIT = 16; // people with nonzero balance
+
+	public static class Transfer {
+		public final String from;
+		public final String to;
+		public final int amount;
+		public Transfer (String from, String to, int amount) {
+			this.from = from;
+			this.to = to;
+			this.amount = amount;
+		}
+		public String toString () {
+			return from + " gives $" + (amount / 100.0) + " to " + to;
+		}
+	}
+
+	private static class Entry {
+		final String name;
+		int balance;
+		Entry (String name, int balance) {this.name = name; this.balance = balance;}
+	}
+
+	/* Uses the exact plan when exact is set and there are at most
+	 * EXACT_LIMIT nonzero balances, the greedy plan otherwise. */
+	public static List<Transfer> plan (Iterable<PersistentState.Person> people, boolean exact)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		long sum = 0;
+		for (PersistentState.Person p : people) {
+			if (p.balance != 0)
+				entries.add(new Entry(p.name, p.balance));
+			sum += p.balance;
+		}
+		if (sum != 0)
+			throw new IllegalArgumentException("balances do not sum to zero: " + sum);
+		if (exact && entries.size() <= EXACT_LIMIT)
+			return exact(entries);
+		return greedy(entries);
+	}
+
+	private static List<Transfer> greedy (List<Entry> entries)
+	{
+		Comparator<Entry> largestFirst = new Comparator<Entry>() {
+			public int compare (Entry e1, Entry e2) {
+				return Math.abs(e1.balance) > Math.abs(e2.balance) ? -1 :
+					Math.abs(e1.balance) < Math.abs(e2.balance) ? 1 : e1.name.compareTo(e2.name);
+			}
+		};
+		PriorityQueue<Entry> debtors = new PriorityQueue<Entry>(Math.max(1, entries.size()), largestFirst);
+		PriorityQueue<Entry> creditors = new PriorityQueue<Entry>(Math.max(1, entries.size()), largestFirst);
+		for (Entry e : entries)
+			(e.balance < 0 ? debtors : creditors).add(new Entry(e.name, e.balance));
+
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		while (!debtors.isEmpty() && !creditors.isEmpty()) {
+			Entry debtor = debtors.poll();
+			Entry creditor = creditors.poll();
+			int amount = Math.min(-debtor.balance, creditor.balance);
+			transfers.add(new Transfer(debtor.name, creditor.name, amount));
+			debtor.balance += amount;
+			creditor.balance -= amount;
+			if (debtor.balance != 0)
+				debtors.add(debtor);
+			if (creditor.balance != 0)
+				creditors.add(creditor);
+		}
+		return transfers;
+	}
+
+	/* groups[mask] is the largest number of zero-sum groups the people in
+	 * mask can be split into. Each group of k people needs k-1 transfers,
+	 * so the most groups gives the fewest transfers. */
+	private static List<Transfer> exact (List<Entry> entries)
+	{
+		int n = entries.size();
+		long [] sums = new long [1 << n];
+		byte [] groups = new byte [1 << n];
+		for (int mask = 1; mask < (1 << n); mask ++) {
+			int low = Integer.numberOfTrailingZeros(mask);
+			sums[mask] = sums[mask & (mask - 1)] + entries.get(low).balance;
+			int best = 0;
+			for (int i = 0; i < n; i ++)
+				if ((mask & (1 << i)) != 0)
+					best = Math.max(best, groups[mask ^ (1 << i)]);
+			groups[mask] = (byte)(best + (sums[mask] == 0 ? 1 : 0));
+		}
+
+		// Walk back from the full set. Whenever the remaining set sums to
+		// zero, the people removed since the last such point form a group.
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		List<Entry> group = new ArrayList<Entry>();
+		int mask = (1 << n) - 1;
+		while (mask != 0) {
+			int want = groups[mask] - (sums[mask] == 0 ? 1 : 0);
+			for (int i = 0; i < n; i ++) {
+				if ((mask & (1 << i)) != 0 && groups[mask ^ (1 << i)] == want) {
+					group.add(entries.get(i));
+					mask ^= 1 << i;
+					break;
+				}
+			}
+			if (sums[mask] == 0) {
+				transfers.addAll(greedy(group));
+				group.clear();
+			}
+		}
+		return transfers;
+	}
+}
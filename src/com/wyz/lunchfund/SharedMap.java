@@ -0,0 +1,180 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+
+/* An immutable map from strings to values, iterated in key order, whose
+ * structure is shared between versions. with() and without() return a new
+ * map in O(log n), copying only the path to the changed key of a balanced
+ * (AVL) tree, so a state, its snapshots and its forks can each keep their
+ * own version without copying the whole map. Immutable, so any version may
+ * be read from any thread once published. */
+class SharedMap<V> extends AbstractMap<String, V>
+{
+	private static class Node<V> {
+		final String key;
+		final V value;
+		final Node<V> left, right;
+		final int height;
+		Node (String key, V value, Node<V> left, Node<V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			height = 1 + Math.max(height(left), height(right));
+		}
+	}
+
+	private final Node<V> root;
+	private final int size;
+
+	public SharedMap ()
+	{
+		this(null, 0);
+	}
+
+	private SharedMap (Node<V> root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	public int size ()
+	{
+		return size;
+	}
+
+	public V get (Object key)
+	{
+		Node<V> n = find(key);
+		return n == null ? null : n.value;
+	}
+
+	public boolean containsKey (Object key)
+	{
+		return find(key) != null;
+	}
+
+	private Node<V> find (Object key)
+	{
+		if (!(key instanceof String))
+			return null;
+		String k = (String)key;
+		Node<V> n = root;
+		while (n != null) {
+			int c = k.compareTo(n.key);
+			if (c == 0)
+				return n;
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	/* This map with key set to value. */
+	public SharedMap<V> with (String key, V value)
+	{
+		return new SharedMap<V>(insert(root, key, value), containsKey(key) ? size : size + 1);
+	}
+
+	/* This map without key. */
+	public SharedMap<V> without (String key)
+	{
+		if (!containsKey(key))
+			return this;
+		return new SharedMap<V>(remove(root, key), size - 1);
+	}
+
+	public Set<Map.Entry<String, V>> entrySet ()
+	{
+		return new AbstractSet<Map.Entry<String, V>>() {
+			public int size () {
+				return size;
+			}
+			public Iterator<Map.Entry<String, V>> iterator () {
+				return new Iterator<Map.Entry<String, V>>() {
+					// Nodes whose key and right subtree are still to come.
+					private final ArrayDeque<Node<V>> stack = descend(new ArrayDeque<Node<V>>(), root);
+					public boolean hasNext () {
+						return !stack.isEmpty();
+					}
+					public Map.Entry<String, V> next () {
+						if (stack.isEmpty())
+							throw new NoSuchElementException();
+						Node<V> n = stack.pop();
+						descend(stack, n.right);
+						return new AbstractMap.SimpleImmutableEntry<String, V>(n.key, n.value);
+					}
+					public void remove () {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private static <V> ArrayDeque<Node<V>> descend (ArrayDeque<Node<V>> stack, Node<V> n)
+	{
+		for (; n != null; n = n.left)
+			stack.push(n);
+		return stack;
+	}
+
+	private static int height (Node<?> n)
+	{
+		return n == null ? 0 : n.height;
+	}
+
+	private static <V> Node<V> insert (Node<V> n, String key, V value)
+	{
+		if (n == null)
+			return new Node<V>(key, value, null, null);
+		int c = key.compareTo(n.key);
+		if (c < 0)
+			return balance(n.key, n.value, insert(n.left, key, value), n.right);
+		if (c > 0)
+			return balance(n.key, n.value, n.left, insert(n.right, key, value));
+		return new Node<V>(key, value, n.left, n.right);
+	}
+
+	private static <V> Node<V> remove (Node<V> n, String key)
+	{
+		int c = key.compareTo(n.key);
+		if (c < 0)
+			return balance(n.key, n.value, remove(n.left, key), n.right);
+		if (c > 0)
+			return balance(n.key, n.value, n.left, remove(n.right, key));
+		if (n.left == null)
+			return n.right;
+		if (n.right == null)
+			return n.left;
+		Node<V> min = n.right;
+		while (min.left != null)
+			min = min.left;
+		return balance(min.key, min.value, n.left, removeMin(n.right));
+	}
+
+	private static <V> Node<V> removeMin (Node<V> n)
+	{
+		if (n.left == null)
+			return n.right;
+		return balance(n.key, n.value, removeMin(n.left), n.right);
+	}
+
+	/* A node for key with the given subtrees, whose heights differ by at
+	 * most two, rotated so that they differ by at most one. */
+	private static <V> Node<V> balance (String key, V value, Node<V> l, Node<V> r)
+	{
+		if (height(l) > height(r) + 1) {
+			if (height(l.left) >= height(l.right))
+				return new Node<V>(l.key, l.value, l.left, new Node<V>(key, value, l.right, r));
+			return new Node<V>(l.right.key, l.right.value, new Node<V>(l.key, l.value, l.left, l.right.left),
+				new Node<V>(key, value, l.right.right, r));
+		}
+		if (height(r) > height(l) + 1) {
+			if (height(r.right) >= height(r.left))
+				return new Node<V>(r.key, r.value, new Node<V>(key, value, l, r.left), r.right);
+			return new Node<V>(r.left.key, r.left.value, new Node<V>(key, value, l, r.left.left),
+				new Node<V>(r.key, r.value, r.left.right, r.right));
+		}
+		return new Node<V>(key, value, l, r);
+	}
+}
@@ -0,0 +1,92 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+
+/* An array-backed stack whose prefixes can be shared. view() and fork()
+ * are O(1) and share the backing array with this stack. A slot is never
+ * rewritten once a view or fork may see it: pushing below such a slot
+ * copies the array first. Not thread-safe; views are immutable and may be
+ * read from any thread once published. */
+class SharedStack<T> extends AbstractList<T>
+{
+	private static class Block {
+		final Object [] items;
+		int claimed = 0; // slots below this may be visible to someone
+		boolean shared = false;
+		Block (Object [] items) {this.items = items;}
+	}
+
+	private Block block;
+	private int size;
+
+	public SharedStack ()
+	{
+		block = new Block(new Object [16]);
+		size = 0;
+	}
+
+	private SharedStack (Block block, int size)
+	{
+		this.block = block;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get (int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(index + " of " + size);
+		return (T)block.items[index];
+	}
+
+	public int size ()
+	{
+		return size;
+	}
+
+	public void push (T item)
+	{
+		if (size < block.claimed || size == block.items.length) {
+			Object [] items = new Object [Math.max(16, size + (size >> 1) + 1)];
+			System.arraycopy(block.items, 0, items, 0, size);
+			block = new Block(items);
+			block.claimed = size;
+		}
+		block.items[size ++] = item;
+		block.claimed = size;
+	}
+
+	public T pop ()
+	{
+		T item = peek();
+		size --;
+		if (!block.shared) {
+			block.items[size] = null;
+			block.claimed = size;
+		}
+		return item;
+	}
+
+	public T peek ()
+	{
+		if (size == 0)
+			throw new EmptyStackException();
+		return get(size - 1);
+	}
+
+	/* A new stack starting with the first size items of this one. */
+	public SharedStack<T> fork (int size)
+	{
+		if (size < 0 || size > this.size)
+			throw new IndexOutOfBoundsException(size + " of " + this.size);
+		block.shared = true;
+		return new SharedStack<T>(block, size);
+	}
+
+	/* An unmodifiable list of the current items. */
+	public List<T> view ()
+	{
+		block.shared = true;
+		return Collections.unmodifiableList(new SharedStack<T>(block, size));
+	}
+}
@@ -0,0 +1,54 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Renders personal statements for many people at once. Each statement is
+ * an independent scan of the same read-only snapshot, so they run in
+ * parallel on a small worker pool. */
+public class StatementGenerator
+{
+	public static class Statement {
+		public final String name;
+		public final String email;
+		public final String text;
+		public Statement (String name, String email, String text) {
+			this.name = name;
+			this.email = email;
+			this.text = text;
+		}
+	}
+
+	/* Statements come back in the order of names. Unknown names are skipped. */
+	public static List<Statement> generate (final PersistentState.Snapshot snap, Collection<String> names)
+		throws InterruptedException, ExecutionException
+	{
+		List<Callable<Statement>> tasks = new ArrayList<Callable<Statement>>();
+		for (final String name : names) {
+			final PersistentState.Person person = snap.getPerson(name);
+			if (person == null)
+				continue;
+			tasks.add(new Callable<Statement>() {
+					public Statement call () {
+						return new Statement(person.name, person.email, snap.showHistory(true, person.name));
+					}
+				});
+		}
+		List<Statement> statements = new ArrayList<Statement>();
+		if (tasks.size() == 0)
+			return statements;
+
+		long start = Stats.start();
+		int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (Future<Statement> f : pool.invokeAll(tasks))
+				statements.add(f.get());
+		} finally {
+			pool.shutdownNow();
+		}
+		Stats.recordTime("statements", start);
+		Stats.record("statements.count", statements.size());
+		return statements;
+	}
+}
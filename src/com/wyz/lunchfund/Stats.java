@@ -0,0 +1,85 @@
+package com.wyz.lunchfund;
+
+import java.util.*;
+
+/* Process-wide counters for the slow paths. Each metric keeps count, sum,
+ * min, max and a power-of-two histogram, so recording is cheap enough to
+ * stay enabled in release builds. Durations are in microseconds. */
+public class Stats
+{
+	private static final SortedMap<String, Metric> metrics = new TreeMap<String, Metric>();
+	private static int suspended = 0;
+
+	private static class Metric {
+		long count;
+		long sum;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		final long [] buckets = new long [64]; // buckets[i] counts values < 2^i
+		void add (long value) {
+			count ++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			buckets[value <= 0 ? 0 : Math.min(63, 64 - Long.numberOfLeadingZeros(value))] ++;
+		}
+	}
+
+	public static synchronized void record (String name, long value)
+	{
+		if (suspended > 0)
+			return;
+		Metric m = metrics.get(name);
+		if (m == null) {
+			m = new Metric();
+			metrics.put(name, m);
+		}
+		m.add(value);
+	}
+
+	/* Returns a start time for recordTime(). */
+	public static long start ()
+	{
+		return System.nanoTime();
+	}
+
+	public static void recordTime (String name, long start)
+	{
+		record(name + ".us", (System.nanoTime() - start) / 1000);
+	}
+
+	/* Used by LedgerBenchmark so that synthetic runs do not mix with real ones. */
+	public static synchronized void suspend ()
+	{
+		suspended ++;
+	}
+
+	public static synchronized void resume ()
+	{
+		suspended --;
+	}
+
+	public static synchronized void reset ()
+	{
+		metrics.clear();
+	}
+
+	public static synchronized String dump ()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Metric> e : metrics.entrySet()) {
+			Metric m = e.getValue();
+			sb.append(e.getKey()).append(": n=").append(m.count).
+				append(" mean=").append(m.sum / m.count).
+				append(" min=").append(m.min).
+				append(" max=").append(m.max).append("\n ");
+			for (int i = 0; i < m.buckets.length; i ++)
+				if (m.buckets[i] > 0)
+					sb.append(" <").append(1L << i).append(":").append(m.buckets[i]);
+			sb.append("\n");
+		}
+		if (sb.length() == 0)
+			sb.append("nothing recorded\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,341 @@
+package com.wyz.lunchfund;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/* Incremental sync of two ledgers over a plain TCP connection. Both peers
+ * send their history length and prefix hashes at exponentially spaced
+ * positions from the end, agree on the longest prefix both have, and send
+ * each other only the transactions after it, in the exportTo() format.
+ * The received export goes through merge(), so it is validated exactly
+ * like a pasted one. Since the positions are spaced out, at most about
+ * twice the diverged tail is sent. The initiator speaks first in every
+ * round, so the peers never both block on a full socket buffer.
+ *
+ * The host shows a random pairing code which is entered on the other
+ * phone. After an exchange of nonces every message carries an HMAC keyed
+ * with the code, over the nonces, the sender and the round, and the host
+ * checks the initiator's hello before sending anything of its own. A
+ * client without the code gets nothing out of the host. */
+public class SyncProtocol
+{
+	public static final int PORT = 47123;
+	// How long a host waits for the other phone before giving up.
+	public static final int ACCEPT_TIMEOUT_MS = 120000;
+
+	private static final String MAGIC = "LFSYNC2";
+	private static final int TIMEOUT_MS = 30000;
+	private static final int NONCE_BYTES = 16;
+	private static final int MAC_BYTES = 32;
+	private static final int MAX_POSITIONS = 64;
+	private static final int MAX_HELLO = 8 + MAX_POSITIONS * 8;
+	private static final int MAX_PAYLOAD = 64 << 20;
+	// Bounds what one announced transaction may cost in a payload; the
+	// export is gzipped, so real lines take far less.
+	private static final int MAX_TRANSACTION_BYTES = 16384;
+	private static final int EXPORT_OVERHEAD = 1024;
+	private static final int MAX_UNEXPORTED = 65535; // export header field
+
+	private static class Hello {
+		int size;
+		int [] positions;
+		long [] hashes;
+	}
+
+	/* Six random digits to show on the host. */
+	public static String newPairingCode ()
+	{
+		return String.format(Locale.US, "%06d", new SecureRandom().nextInt(1000000));
+	}
+
+	/* Syncs with a peer waiting in accept() with the same code. */
+	public static PersistentState.MergeResult connect (PersistentState pstate, String host, int port, String code)
+		throws IOException
+	{
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+			return sync(pstate, socket, true, code);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/* Waits for one peer on server and syncs with it if it knows code.
+	 * Closing server from another thread cancels the wait. */
+	public static PersistentState.MergeResult accept (PersistentState pstate, ServerSocket server, String code)
+		throws IOException
+	{
+		Socket socket = server.accept();
+		try {
+			return sync(pstate, socket, false, code);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static PersistentState.MergeResult sync (PersistentState pstate, Socket socket, boolean initiator,
+		String code) throws IOException
+	{
+		socket.setSoTimeout(TIMEOUT_MS);
+		socket.setTcpNoDelay(true);
+		return sync(pstate, socket.getInputStream(), socket.getOutputStream(), initiator, code);
+	}
+
+	/* The HMAC every message after the nonces carries. */
+	private static class Auth {
+		private final Mac mac;
+		private final byte [] nonces;
+		private final String self, peer;
+
+		Auth (String code, byte [] initiatorNonce, byte [] responderNonce, boolean initiator) throws IOException
+		{
+			try {
+				mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(code.getBytes("UTF-8"), "HmacSHA256"));
+			} catch (GeneralSecurityException x) {
+				throw new IOException("HmacSHA256 not available: " + x);
+			}
+			nonces = new byte [initiatorNonce.length + responderNonce.length];
+			System.arraycopy(initiatorNonce, 0, nonces, 0, initiatorNonce.length);
+			System.arraycopy(responderNonce, 0, nonces, initiatorNonce.length, responderNonce.length);
+			self = initiator ? "initiator" : "responder";
+			peer = initiator ? "responder" : "initiator";
+		}
+
+		byte [] tag (String sender, String round, byte [] message, int length) throws IOException
+		{
+			mac.update(nonces);
+			mac.update((sender + "/" + round + "\n").getBytes("UTF-8"));
+			mac.update(message, 0, length);
+			return mac.doFinal();
+		}
+
+		void write (DataOutputStream out, String round, byte [] message, int length) throws IOException
+		{
+			out.writeInt(length);
+			out.write(message, 0, length);
+			out.write(tag(self, round, message, length));
+			out.flush();
+		}
+
+		/* Reads a message of at most max bytes and checks its HMAC. */
+		byte [] read (DataInputStream in, String round, int max) throws IOException
+		{
+			int length = in.readInt();
+			if (length < 0 || length > max)
+				throw new IOException("Protocol error: " + round + " of " + length + " bytes");
+			byte [] message = new byte [length];
+			in.readFully(message);
+			byte [] theirs = new byte [MAC_BYTES];
+			in.readFully(theirs);
+			if (!MessageDigest.isEqual(theirs, tag(peer, round, message, length)))
+				throw new IOException(round.equals("hello") ? "Wrong pairing code" : "Protocol error: bad " + round);
+			return message;
+		}
+	}
+
+	/* Runs one side of the protocol. Returns what merge() made of the
+	 * peer's transactions; nothing is applied to pstate. */
+	public static PersistentState.MergeResult sync (PersistentState pstate, InputStream is, OutputStream os,
+		boolean initiator, String code) throws IOException
+	{
+		long start = Stats.start();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+
+		// Round 0: nonces, so no message can be replayed in another sync.
+		byte [] nonce = new byte [NONCE_BYTES];
+		new SecureRandom().nextBytes(nonce);
+		if (initiator)
+			writeNonce(out, nonce);
+		byte [] peerNonce = readNonce(in);
+		if (!initiator)
+			writeNonce(out, nonce);
+		Auth auth = initiator ? new Auth(code, nonce, peerNonce, true) : new Auth(code, peerNonce, nonce, false);
+
+		PersistentState.Snapshot snap = pstate.snapshot();
+		int size = snap.historySize();
+
+		// Round 1: history length and prefix hashes. The responder only
+		// computes and sends its own once the initiator proved the code.
+		Hello peer = null;
+		if (!initiator)
+			peer = parseHello(auth.read(in, "hello", MAX_HELLO));
+		Hello ours = new Hello();
+		ours.size = size;
+		ours.positions = positions(size);
+		ours.hashes = snap.prefixHashes(ours.positions);
+		byte [] hello = formatHello(ours);
+		auth.write(out, "hello", hello, hello.length);
+		if (initiator) {
+			try {
+				peer = parseHello(auth.read(in, "hello", MAX_HELLO));
+			} catch (EOFException x) {
+				// The host hangs up on a wrong code.
+				throw new IOException("Peer closed the connection, check the pairing code");
+			}
+		}
+
+		// Round 2: the longest of the peer's prefixes we also have. Either
+		// side may find the longer one, so both are exchanged.
+		int match = match(snap, peer);
+		if (initiator)
+			writeInt(auth, out, "match", match);
+		int peerMatch = readInt(auth, in, "match");
+		if (!initiator)
+			writeInt(auth, out, "match", match);
+		if (peerMatch < 0 || peerMatch > size || peerMatch > peer.size)
+			throw new IOException("Protocol error: common prefix " + peerMatch);
+		int agreed = Math.min(Math.max(match, peerMatch), MAX_UNEXPORTED);
+
+		// Round 3: everything after the common prefix.
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		if (size > agreed)
+			snap.exportTo(size - agreed, payload);
+		byte [] sent = payload.toByteArray();
+		if (initiator)
+			auth.write(out, "payload", sent, sent.length);
+		byte [] received = auth.read(in, "payload", maxPayload(peer.size - agreed));
+		if (!initiator)
+			auth.write(out, "payload", sent, sent.length);
+
+		Stats.recordTime("sync", start);
+		Stats.record("sync.sent", size - agreed);
+		Stats.record("sync.bytes", sent.length + received.length);
+		if (received.length == 0)
+			return new PersistentState.MergeResult(null, "Nothing new");
+		return pstate.merge(new ByteArrayInputStream(received));
+	}
+
+	/* The most a peer that announced count transactions past the agreed
+	 * prefix can need to send them. */
+	private static int maxPayload (int count)
+	{
+		if (count == 0)
+			return 0;
+		return (int)Math.min(MAX_PAYLOAD, (long)count * MAX_TRANSACTION_BYTES + EXPORT_OVERHEAD);
+	}
+
+	private static void writeNonce (DataOutputStream out, byte [] nonce) throws IOException
+	{
+		out.writeUTF(MAGIC);
+		out.write(nonce);
+		out.flush();
+	}
+
+	private static byte [] readNonce (DataInputStream in) throws IOException
+	{
+		if (!MAGIC.equals(in.readUTF()))
+			throw new IOException("Peer does not speak " + MAGIC);
+		byte [] nonce = new byte [NONCE_BYTES];
+		in.readFully(nonce);
+		return nonce;
+	}
+
+	/* 0 and size - (2^k - 1) for k = 0, 1, ..., ascending. */
+	private static int [] positions (int size)
+	{
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for (int back = 0; back < size; back = back * 2 + 1)
+			list.add(size - back);
+		list.add(0);
+		int [] positions = new int [list.size()];
+		for (int i = 0; i < positions.length; i ++)
+			positions[i] = list.get(positions.length - 1 - i);
+		return positions;
+	}
+
+	private static int match (PersistentState.Snapshot snap, Hello peer) throws IOException
+	{
+		int n = 0;
+		while (n < peer.positions.length && peer.positions[n] <= snap.historySize())
+			n ++;
+		long [] hashes = snap.prefixHashes(Arrays.copyOf(peer.positions, n));
+		for (int i = n - 1; i >= 0; i --)
+			if (hashes[i] == peer.hashes[i])
+				return peer.positions[i];
+		return 0;
+	}
+
+	private static byte [] formatHello (Hello hello) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(hello.size);
+		out.writeInt(hello.positions.length);
+		for (int i = 0; i < hello.positions.length; i ++) {
+			out.writeInt(hello.positions[i]);
+			out.writeInt((int)hello.hashes[i]);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Hello parseHello (byte [] bytes) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Hello hello = new Hello();
+		hello.size = in.readInt();
+		int count = in.readInt();
+		if (hello.size < 0 || count < 1 || count > MAX_POSITIONS)
+			throw new IOException("Protocol error: size " + hello.size + ", " + count + " positions");
+		hello.positions = new int [count];
+		hello.hashes = new long [count];
+		for (int i = 0; i < count; i ++) {
+			hello.positions[i] = in.readInt();
+			hello.hashes[i] = in.readInt() & 0xffffffffL;
+			if (hello.positions[i] > hello.size || hello.positions[i] < (i == 0 ? 0 : hello.positions[i-1] + 1))
+				throw new IOException("Protocol error: position " + hello.positions[i]);
+		}
+		return hello;
+	}
+
+	private static void writeInt (Auth auth, DataOutputStream out, String round, int value) throws IOException
+	{
+		byte [] bytes = {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+		auth.write(out, round, bytes, 4);
+	}
+
+	private static int readInt (Auth auth, DataInputStream in, String round) throws IOException
+	{
+		byte [] bytes = auth.read(in, round, 4);
+		if (bytes.length != 4)
+			throw new IOException("Protocol error: " + round + " of " + bytes.length + " bytes");
+		return new DataInputStream(new ByteArrayInputStream(bytes)).readInt();
+	}
+
+	/* Syncs a and b through a socket on the loopback interface. Returns
+	 * the results for a and b, in that order. */
+	public static PersistentState.MergeResult [] loopback (final PersistentState a, PersistentState b)
+		throws Exception
+	{
+		final String code = newPairingCode();
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final PersistentState.MergeResult [] results = new PersistentState.MergeResult [2];
+		final Exception [] failure = new Exception [1];
+		Thread host = new Thread(new Runnable() {
+				public void run () {
+					try {
+						results[0] = accept(a, server, code);
+					} catch (Exception x) {
+						failure[0] = x;
+					}
+				}
+			});
+		host.start();
+		try {
+			results[1] = connect(b, "127.0.0.1", server.getLocalPort(), code);
+		} finally {
+			server.close();
+			host.join();
+		}
+		if (failure[0] != null)
+			throw failure[0];
+		return results;
+	}
+}